@@ -0,0 +1,50 @@
+package io.github.dschanoeh.homie_java;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the advertisement that follows every new connection for node
+ * trees of different sizes.
+ */
+@State(Scope.Thread)
+public class AdvertiseBenchmark {
+
+    @Param({"10", "100"})
+    public int nodes;
+
+    @Param({"10"})
+    public int propertiesPerNode;
+
+    private BenchmarkHomie homie;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        homie = new BenchmarkHomie("advertise-benchmark");
+        for (int n = 0; n < nodes; n++) {
+            Node node = homie.createNode("node" + n, "benchmark");
+            for (int p = 0; p < propertiesPerNode; p++) {
+                Property property = node.getProperty("property" + p);
+                property.setDataType(Property.DataType.INTEGER);
+                property.setFormat("0:100");
+                property.setUnit("%");
+                property.makeSettableLong((prop, value) -> { });
+            }
+        }
+        homie.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        homie.shutdown();
+    }
+
+    @Benchmark
+    public boolean advertise() {
+        return homie.advertise();
+    }
+}
@@ -0,0 +1,46 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * A device connected to a {@link StubMqttClient} instead of a broker.
+ */
+class BenchmarkHomie extends Homie {
+
+    private volatile StubMqttClient transport;
+
+    BenchmarkHomie(String deviceID) {
+        super(configuration(deviceID), "benchmark", "0.0.1");
+    }
+
+    private static Configuration configuration(String deviceID) {
+        Configuration c = new Configuration();
+        c.setBrokerUrl("tcp://127.0.0.1:1883");
+        c.setDeviceID(deviceID);
+        return c;
+    }
+
+    @Override
+    MqttAsyncClient createClient(String serverURI, String clientId, MqttClientPersistence persistence)
+            throws MqttException {
+        transport = new StubMqttClient(serverURI, clientId, persistence);
+        return transport;
+    }
+
+    /**
+     * Sets the device up and waits until it is ready.
+     */
+    BenchmarkHomie start() throws InterruptedException {
+        setup();
+        while (getState() != State.READY) {
+            Thread.sleep(1);
+        }
+        return this;
+    }
+
+    StubMqttClient getTransport() {
+        return transport;
+    }
+}
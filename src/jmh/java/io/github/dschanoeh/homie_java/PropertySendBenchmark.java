@@ -0,0 +1,131 @@
+package io.github.dschanoeh.homie_java;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Measures each send overload of a ready device, from value validation and
+ * encoding through the publish path down to the stub transport.
+ */
+@State(Scope.Thread)
+public class PropertySendBenchmark {
+
+    private static final String[] MODES = {"off", "eco", "comfort", "boost"};
+
+    private BenchmarkHomie homie;
+    private Property integerProperty;
+    private Property floatProperty;
+    private Property booleanProperty;
+    private Property stringProperty;
+    private Property enumProperty;
+    private Property colorProperty;
+    private byte[] encodedInteger;
+    private ByteBuffer encodedFloat;
+    private long counter;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        homie = new BenchmarkHomie("send-benchmark");
+        Node node = homie.createNode("node", "benchmark");
+        integerProperty = node.getProperty("integer");
+        integerProperty.setDataType(Property.DataType.INTEGER);
+        floatProperty = node.getProperty("float");
+        floatProperty.setDataType(Property.DataType.FLOAT);
+        booleanProperty = node.getProperty("boolean");
+        booleanProperty.setDataType(Property.DataType.BOOLEAN);
+        stringProperty = node.getProperty("string");
+        enumProperty = node.getProperty("enum");
+        enumProperty.setDataType(Property.DataType.ENUM);
+        enumProperty.setFormat(String.join(",", MODES));
+        colorProperty = node.getProperty("color");
+        colorProperty.setDataType(Property.DataType.COLOR_RGB);
+        encodedInteger = "1234567".getBytes(UTF_8);
+        encodedFloat = ByteBuffer.wrap("21.5".getBytes(UTF_8));
+        homie.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        homie.shutdown();
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendBoxedLong() {
+        return integerProperty.send(Long.valueOf(counter++));
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendLong() {
+        return integerProperty.send(counter++);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendInt() {
+        return integerProperty.send((int) counter++);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendBoxedDouble() {
+        return floatProperty.send(Double.valueOf(counter++ * 0.1));
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendDouble() {
+        return floatProperty.send(counter++ * 0.1);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendDoubleWithPrecision() {
+        return floatProperty.send(counter++ * 0.1, 2);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendBoxedBoolean() {
+        return booleanProperty.send(Boolean.valueOf((counter++ & 1) == 0));
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendBoolean() {
+        return booleanProperty.send((counter++ & 1) == 0);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendString() {
+        return stringProperty.send("value");
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendEnum() {
+        return enumProperty.send(MODES[(int) (counter++ & 3)]);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendEnumOrdinal() {
+        return enumProperty.sendOrdinal((int) (counter++ & 3));
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendColor() {
+        int c = (int) (counter++ & 0xff);
+        return colorProperty.send(c, 255 - c, 128);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendEncodedBytes() {
+        return integerProperty.send(encodedInteger);
+    }
+
+    @Benchmark
+    public CompletionStage<Void> sendEncodedBuffer() {
+        encodedFloat.rewind();
+        return floatProperty.send(encodedFloat);
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Measures inbound set messages from the subscription of the stub transport
+ * through topic routing and parsing to the property's callback.
+ */
+@State(Scope.Thread)
+public class SetDispatchBenchmark {
+
+    private static final int NODES = 20;
+    private static final int PROPERTIES = 10;
+
+    private BenchmarkHomie homie;
+    private Blackhole blackhole;
+    private String filter;
+    private String stringTopic;
+    private String longTopic;
+    private String doubleTopic;
+    private String enumTopic;
+    private MqttMessage stringMessage;
+    private MqttMessage longMessage;
+    private MqttMessage doubleMessage;
+    private MqttMessage enumMessage;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws InterruptedException {
+        this.blackhole = blackhole;
+        homie = new BenchmarkHomie("dispatch-benchmark");
+        for (int n = 0; n < NODES; n++) {
+            Node node = homie.createNode("node" + n, "benchmark");
+            for (int p = 0; p < PROPERTIES; p++) {
+                node.getProperty("property" + p).makeSettable((property, value) -> this.blackhole.consume(value));
+            }
+        }
+
+        Node node = homie.createNode("typed", "benchmark");
+        Property dimmer = node.getProperty("dimmer");
+        dimmer.setDataType(Property.DataType.INTEGER);
+        dimmer.setFormat("0:100");
+        dimmer.makeSettableLong((property, value) -> this.blackhole.consume(value));
+        Property setpoint = node.getProperty("setpoint");
+        setpoint.setDataType(Property.DataType.FLOAT);
+        setpoint.makeSettableDouble((property, value) -> this.blackhole.consume(value));
+        Property mode = node.getProperty("mode");
+        mode.setDataType(Property.DataType.ENUM);
+        mode.setFormat("off,eco,comfort,boost");
+        mode.makeSettableEnum((property, ordinal) -> this.blackhole.consume(ordinal));
+        homie.start();
+
+        filter = "homie/dispatch-benchmark/+/+/set";
+        stringTopic = "homie/dispatch-benchmark/node" + (NODES - 1) + "/property" + (PROPERTIES - 1) + "/set";
+        longTopic = "homie/dispatch-benchmark/typed/dimmer/set";
+        doubleTopic = "homie/dispatch-benchmark/typed/setpoint/set";
+        enumTopic = "homie/dispatch-benchmark/typed/mode/set";
+        stringMessage = new MqttMessage("on".getBytes(UTF_8));
+        longMessage = new MqttMessage("42".getBytes(UTF_8));
+        doubleMessage = new MqttMessage("21.5".getBytes(UTF_8));
+        enumMessage = new MqttMessage("comfort".getBytes(UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        homie.shutdown();
+    }
+
+    @Benchmark
+    public void dispatchString() throws Exception {
+        homie.getTransport().deliver(filter, stringTopic, stringMessage);
+    }
+
+    @Benchmark
+    public void dispatchLong() throws Exception {
+        homie.getTransport().deliver(filter, longTopic, longMessage);
+    }
+
+    @Benchmark
+    public void dispatchDouble() throws Exception {
+        homie.getTransport().deliver(filter, doubleTopic, doubleMessage);
+    }
+
+    @Benchmark
+    public void dispatchEnum() throws Exception {
+        homie.getTransport().deliver(filter, enumTopic, enumMessage);
+    }
+}
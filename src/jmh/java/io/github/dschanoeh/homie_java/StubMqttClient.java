@@ -0,0 +1,171 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process transport for benchmarks. Nothing goes over the network: every
+ * action completes immediately and publishes are acknowledged right away, so
+ * only the work done by the library is measured.
+ */
+class StubMqttClient extends MqttAsyncClient {
+
+    private final Map<String, IMqttMessageListener> subscriptions = new ConcurrentHashMap<>();
+    private volatile boolean connected;
+
+    StubMqttClient(String serverURI, String clientId, MqttClientPersistence persistence) throws MqttException {
+        super(serverURI, clientId, persistence);
+    }
+
+    /**
+     * Delivers an inbound message to the listener subscribed with the filter.
+     */
+    void deliver(String topicFilter, String topic, MqttMessage message) throws Exception {
+        subscriptions.get(topicFilter).messageArrived(topic, message);
+    }
+
+    @Override
+    public IMqttToken connect(MqttConnectOptions options) {
+        connected = true;
+        return new StubToken(this, null);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public IMqttToken disconnect() {
+        connected = false;
+        return new StubToken(this, null);
+    }
+
+    @Override
+    public void disconnectForcibly() {
+        connected = false;
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+            IMqttActionListener callback) {
+        StubToken token = new StubToken(this, message);
+        token.setUserContext(userContext);
+        if (callback != null) {
+            callback.onSuccess(token);
+        }
+        return token;
+    }
+
+    @Override
+    public IMqttToken subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) {
+        subscriptions.put(topicFilter, messageListener);
+        return new StubToken(this, null);
+    }
+
+    @Override
+    public IMqttToken unsubscribe(String topicFilter) {
+        subscriptions.remove(topicFilter);
+        return new StubToken(this, null);
+    }
+
+    /**
+     * A token that is complete from the start.
+     */
+    private static final class StubToken implements IMqttDeliveryToken {
+        private final IMqttAsyncClient client;
+        private final MqttMessage message;
+        private Object userContext;
+        private IMqttActionListener actionCallback;
+
+        private StubToken(IMqttAsyncClient client, MqttMessage message) {
+            this.client = client;
+            this.message = message;
+        }
+
+        @Override
+        public MqttMessage getMessage() {
+            return message;
+        }
+
+        @Override
+        public void waitForCompletion() {
+        }
+
+        @Override
+        public void waitForCompletion(long timeout) {
+        }
+
+        @Override
+        public boolean isComplete() {
+            return true;
+        }
+
+        @Override
+        public MqttException getException() {
+            return null;
+        }
+
+        @Override
+        public void setActionCallback(IMqttActionListener listener) {
+            actionCallback = listener;
+        }
+
+        @Override
+        public IMqttActionListener getActionCallback() {
+            return actionCallback;
+        }
+
+        @Override
+        public IMqttAsyncClient getClient() {
+            return client;
+        }
+
+        @Override
+        public String[] getTopics() {
+            return null;
+        }
+
+        @Override
+        public void setUserContext(Object userContext) {
+            this.userContext = userContext;
+        }
+
+        @Override
+        public Object getUserContext() {
+            return userContext;
+        }
+
+        @Override
+        public int getMessageId() {
+            return 0;
+        }
+
+        @Override
+        public int[] getGrantedQos() {
+            return new int[]{1};
+        }
+
+        @Override
+        public boolean getSessionPresent() {
+            return false;
+        }
+
+        @Override
+        public MqttWireMessage getResponse() {
+            return null;
+        }
+    }
+}
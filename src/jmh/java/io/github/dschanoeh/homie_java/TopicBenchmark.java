@@ -0,0 +1,44 @@
+package io.github.dschanoeh.homie_java;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures building topics and validating topic IDs.
+ */
+@State(Scope.Thread)
+public class TopicBenchmark {
+
+    private Homie homie;
+    private CachedTopic cachedTopic;
+
+    @Setup
+    public void setup() {
+        Configuration c = new Configuration();
+        c.setDeviceID("topic-benchmark");
+        homie = new Homie(c, "benchmark", "0.0.1");
+        cachedTopic = new CachedTopic(homie, "node/property");
+    }
+
+    @Benchmark
+    public String buildPath() {
+        return homie.buildPath("node/property");
+    }
+
+    @Benchmark
+    public String cachedTopic() {
+        return cachedTopic.get();
+    }
+
+    @Benchmark
+    public Boolean validTopicID() {
+        return Homie.isValidTopicID("living-room-thermostat-2");
+    }
+
+    @Benchmark
+    public Boolean invalidTopicID() {
+        return Homie.isValidTopicID("Living Room/Thermostat");
+    }
+}
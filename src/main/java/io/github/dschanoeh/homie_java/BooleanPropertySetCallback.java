@@ -0,0 +1,9 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * This callback gets called with the parsed boolean value when a settable
+ * boolean property was set.
+ */
+public interface BooleanPropertySetCallback {
+    void performSet(Property property, boolean value);
+}
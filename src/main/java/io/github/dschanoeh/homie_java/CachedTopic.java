@@ -0,0 +1,38 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * Full MQTT topic of a device attribute or property. The topic is built once
+ * and only rebuilt when the device path (base topic and device ID) changes.
+ */
+final class CachedTopic {
+
+    private static final class Entry {
+        private final String devicePath;
+        private final String topic;
+
+        private Entry(String devicePath, String topic) {
+            this.devicePath = devicePath;
+            this.topic = topic;
+        }
+    }
+
+    private final Homie homie;
+    private final String attribute;
+    private volatile Entry entry;
+
+    CachedTopic(Homie homie, String attribute) {
+        this.homie = homie;
+        this.attribute = attribute;
+    }
+
+    String get() {
+        String devicePath = homie.getDevicePath();
+        Entry e = entry;
+        /* the device path is cached as well, so a changed identity means a different instance */
+        if (e == null || e.devicePath != devicePath) {
+            e = new Entry(devicePath, devicePath + attribute);
+            entry = e;
+        }
+        return e.topic;
+    }
+}
@@ -0,0 +1,9 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * This callback gets called with the three components of the color when a
+ * settable rgb or hsv property was set.
+ */
+public interface ColorPropertySetCallback {
+    void performSet(Property property, int a, int b, int c);
+}
@@ -0,0 +1,21 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * Decides when a journal rewrites its live records into fresh segments and
+ * deletes the old ones.
+ */
+public interface CompactionPolicy {
+
+    boolean shouldCompact(int segments, long liveBytes, long totalBytes);
+
+    /**
+     * Compacts once more than the given share of a journal that spans several
+     * segments consists of overwritten or removed records.
+     */
+    static CompactionPolicy deadRatio(double ratio) {
+        if (ratio < 0 || ratio >= 1) {
+            throw new IllegalArgumentException("Dead ratio must be within [0:1)");
+        }
+        return (segments, liveBytes, totalBytes) -> segments > 1 && totalBytes - liveBytes > totalBytes * ratio;
+    }
+}
@@ -3,8 +3,17 @@ package io.github.dschanoeh.homie_java;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.concurrent.Executor;
+
 public class Configuration {
 
+    /**
+     * What to do when a message is sent while the outbox is already full.
+     */
+    public enum OutboxOverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, BLOCK
+    }
+
     @Getter private String deviceID;
     @Getter @Setter private String brokerUrl;
     @Getter @Setter private String brokerPassword;
@@ -12,7 +21,50 @@ public class Configuration {
     @Getter @Setter private String deviceName = "";
     @Getter private String baseTopic = "homie";
     @Getter @Setter private Integer statsInterval = 10000;
+    /** Publishes the stats, devices sharing a scheduler are batched by interval. */
+    @Getter @Setter private StatsScheduler statsScheduler = StatsScheduler.getDefault();
+    /**
+     * Base delay in ms before reconnecting. Consecutive failures back off
+     * with decorrelated jitter up to maxDisconnectRetry.
+     */
     @Getter @Setter private Integer disconnectRetry = 2000;
+    @Getter @Setter private Integer maxDisconnectRetry = 60000;
+    /**
+     * Number of consecutive failed connection attempts after which the device
+     * gives up and enters the lost state. 0 retries forever.
+     */
+    @Getter @Setter private Integer maxConnectAttempts = 0;
+    /**
+     * Executor on which set callbacks are called. Callbacks of one property
+     * still run in order. If not set, they run on the MQTT client's thread.
+     */
+    @Getter @Setter private Executor setCallbackExecutor;
+    /** Number of set messages a property queues before dropping the oldest. */
+    @Getter @Setter private Integer setCallbackQueueCapacity = 100;
+    /**
+     * Connect with a persistent session. If the broker still has it after a
+     * reconnect, subscriptions are kept and only metadata that changed since
+     * it was last acknowledged is published again.
+     */
+    @Getter @Setter private boolean resumeSessions = false;
+    /**
+     * Number of messages kept while not connected. 0 disables the outbox.
+     * While connected, it also limits the messages waiting for the broker to
+     * acknowledge earlier ones, the overflow policy applies to both.
+     */
+    @Getter @Setter private Integer outboxCapacity = 1000;
+    @Getter @Setter private OutboxOverflowPolicy outboxOverflowPolicy = OutboxOverflowPolicy.DROP_OLDEST;
+    /**
+     * Directory in which queued and unacknowledged messages are journaled so
+     * they survive a restart. If not set, they are only kept in memory.
+     * Messages queued in the outbox are kept regardless of the session.
+     * Unacknowledged messages are only delivered again with
+     * {@link #resumeSessions}: a clean session discards them, like the broker
+     * does with its side of the session.
+     */
+    @Getter @Setter private String persistenceDirectory;
+    @Getter @Setter private Integer journalSegmentSize = JournalPersistence.DEFAULT_SEGMENT_SIZE;
+    @Getter @Setter private CompactionPolicy journalCompactionPolicy = CompactionPolicy.deadRatio(0.5);
 
     public void setDeviceID(String name) {
         if(Boolean.FALSE.equals(Homie.isValidTopicID(name))) {
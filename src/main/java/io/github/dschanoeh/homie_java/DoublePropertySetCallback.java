@@ -0,0 +1,9 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * This callback gets called with the parsed double value when a settable
+ * float property was set.
+ */
+public interface DoublePropertySetCallback {
+    void performSet(Property property, double value);
+}
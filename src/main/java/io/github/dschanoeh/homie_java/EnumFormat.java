@@ -0,0 +1,73 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The values of an enum format, compiled once when the format is set. Values
+ * are looked up by hash, both as String and as raw payload, and the payload of
+ * each value is encoded up front.
+ */
+final class EnumFormat {
+
+    private final byte[][] payloads;
+    private final Map<String, Integer> ordinals;
+    /* open addressing over the payload hashes, holds ordinal + 1 and 0 for free slots */
+    private final int[] slots;
+    private final int mask;
+
+    EnumFormat(String format) {
+        String[] values = format.split(",");
+        payloads = new byte[values.length][];
+        ordinals = new HashMap<>(values.length * 2);
+        slots = new int[Integer.highestOneBit(values.length * 2) << 1];
+        mask = slots.length - 1;
+
+        for (int ordinal = 0; ordinal < values.length; ordinal++) {
+            payloads[ordinal] = values[ordinal].getBytes(UTF_8);
+            /* the first occurrence of a duplicate value wins */
+            if (ordinals.putIfAbsent(values[ordinal], ordinal) == null) {
+                int i = Arrays.hashCode(payloads[ordinal]) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = ordinal + 1;
+            }
+        }
+    }
+
+    int size() {
+        return payloads.length;
+    }
+
+    /**
+     * Returns the index of the value in the format or -1 if it isn't part of it.
+     */
+    int ordinal(String value) {
+        Integer ordinal = ordinals.get(value);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Returns the index of the encoded value in the format or -1 if it isn't
+     * part of it.
+     */
+    int ordinal(byte[] payload) {
+        for (int i = Arrays.hashCode(payload) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (Arrays.equals(payloads[slots[i] - 1], payload)) {
+                return slots[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the encoded value, the array is shared and must not be modified.
+     */
+    byte[] getPayload(int ordinal) {
+        return payloads[ordinal];
+    }
+}
@@ -0,0 +1,9 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * This callback gets called with the index of the value in the enum format
+ * when a settable enum property was set.
+ */
+public interface EnumPropertySetCallback {
+    void performSet(Property property, int ordinal);
+}
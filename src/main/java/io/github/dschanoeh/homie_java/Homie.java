@@ -4,12 +4,24 @@ import lombok.Getter;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,27 +41,81 @@ public class Homie {
     private static final Pattern topicIDPattern = Pattern.compile("^[a-z0-9]([-a-z0-9]*[a-z0-9])?$");
 
     public enum State {
-        INIT, READY, DISCONNECTED, SLEEPING, LOST, ALERT
+        INIT, READY, DISCONNECTED, SLEEPING, LOST, ALERT;
+
+        private final byte[] payload = name().toLowerCase(Locale.ROOT).getBytes(UTF_8);
+
+        /**
+         * The value published to $state, encoded once and shared.
+         */
+        byte[] getPayload() {
+            return payload;
+        }
     }
 
     private Configuration configuration = new Configuration();
     private final String firmwareName;
     private final String firmwareVersion;
-    private MqttClient client;
+    private volatile MqttAsyncClient client;
     private final MqttConnectOptions options;
+    private volatile InflightWindow inflightWindow;
+    private Outbox outbox;
+    private final JournalPersistence journalPersistence;
+    /**
+     * Signals that drive the state machine. Nothing else wakes it up.
+     */
+    private enum Event {
+        CONNECTION_LOST, RECONNECTED, ALERT, CLEAR_ALERT, ATTACH, ADVERTISE_CHANGES, SHUTDOWN
+    }
+
+    private static final class Signal {
+        final Event event;
+        final Homie device;
+        final long postedAt = System.nanoTime();
+
+        Signal(Event event, Homie device) {
+            this.event = event;
+            this.device = device;
+        }
+    }
+
     @Getter
-    private State state = State.INIT;
-    private State previousState = State.DISCONNECTED;
+    private volatile State state = State.INIT;
+    private final BlockingQueue<Signal> events = new LinkedBlockingQueue<>();
+    private ReconnectBackoff backoff;
+    /* consecutive connection attempts that failed since the device was last ready */
+    private int failedConnects;
     private Thread stateMachineThread;
     private final ZonedDateTime bootTime = ZonedDateTime.now();
-    private boolean shutdownRequest = false;
-    private Timer statsTimer;
+    /**
+     * Time it took from starting to connect until the device reached the ready
+     * state the last time, or null if it never got ready.
+     */
+    @Getter
+    private Duration timeToReady;
+    /* set when the connection of a ready device was lost, until it is ready again */
+    private boolean reconnecting;
+    private long disconnectedAt;
     private Function<Void, String> cpuTemperatureFunction;
     private Function<Void, String> cpuLoadFunction;
     private BroadcastReceiver broadcastReceiver;
 
-    private final HashMap<String, Node> nodes = new HashMap<>();
-    private final HashMap<String, IMqttMessageListener> listeners = new HashMap<>();
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>();
+    private final AtomicBoolean advertisementRequested = new AtomicBoolean();
+    private final ConcurrentHashMap<String, CachedTopic> attributeTopics = new ConcurrentHashMap<>();
+    /* metadata the broker acknowledged within the current persistent session */
+    private final ConcurrentHashMap<String, String> advertisedAttributes = new ConcurrentHashMap<>();
+    /* whether the set topics are subscribed within the current session */
+    private volatile boolean subscribed = false;
+    private volatile String[] devicePath = {null, null, null};
+    private final TopicRouter<IMqttMessageListener> listeners = new TopicRouter<>();
+
+    /* gateway mode: the gateway connects and drives all devices it hosts */
+    private final Homie gateway;
+    private boolean hostsDevices;
+    private final List<Homie> devices = new CopyOnWriteArrayList<>();
+    @Getter
+    private final HomieMetrics metrics = new HomieMetrics(this);
 
     /**
      * Allows the user to supply a CPU temperature function that will be called
@@ -73,71 +139,246 @@ public class Homie {
 
     private final Runnable stateMachine = () -> {
         try {
-            while (!shutdownRequest) {
+            enter(State.INIT, null);
+            while (true) {
+                Signal signal;
                 switch (state) {
                     case INIT:
-                        if (previousState != State.INIT) {
-                            LOGGER.log(Level.INFO, "--> init");
-                            previousState = State.INIT;
-                        }
+                        long connectStart = System.nanoTime();
                         if (connect()) {
-                            /* the first message we have to send is the init state */
-                            publishStateUpdate();
-
-                            sendAttributes();
-                            publishNodes();
-                            subscribeListeners();
-
-                            /* Finished reporting all attributes. Now we can transition to ready state */
-                            state = State.READY;
+                            if (advertise()) {
+                                /* Finished reporting all attributes. Now we can transition to ready state */
+                                backoff.reset();
+                                failedConnects = 0;
+                                ready(connectStart);
+                                for (Homie device : devices) {
+                                    device.ready(connectStart);
+                                }
+                            } else {
+                                LOGGER.log(Level.INFO, "Advertisement failed...");
+                                failedConnects++;
+                                enter(State.DISCONNECTED, null);
+                            }
                         } else {
                             LOGGER.log(Level.INFO, "Connect failed...");
-                            state = State.DISCONNECTED;
+                            failedConnects++;
+                            enter(State.DISCONNECTED, null);
                         }
                         break;
                     case READY:
-                        if (previousState != State.READY) {
-                            if (client.isConnected()) {
-                                publishStateUpdate();
-                            }
-                            LOGGER.log(Level.INFO, "--> ready");
-                            previousState = State.READY;
-                        }
-                        if (!client.isConnected()) {
-                            state = State.DISCONNECTED;
-                        }
-                        break;
                     case ALERT:
-                        if (previousState != State.ALERT) {
-                            if (client.isConnected()) {
-                                publishStateUpdate();
-                            }
-                            LOGGER.log(Level.INFO, "--> alert");
-                            previousState = State.ALERT;
-                        }
-                        if (!client.isConnected()) {
-                            state = State.DISCONNECTED;
+                        signal = events.take();
+                        /* alerts and attachments may target a hosted device */
+                        Homie target = signal.device != null ? signal.device : this;
+                        if (signal.event == Event.SHUTDOWN) {
+                            return;
+                        } else if (signal.event == Event.CONNECTION_LOST && !client.isConnected()) {
+                            enter(State.DISCONNECTED, signal);
+                        } else if (signal.event == Event.ALERT && target.state == State.READY) {
+                            target.enter(State.ALERT, signal);
+                        } else if (signal.event == Event.CLEAR_ALERT && target.state == State.ALERT) {
+                            target.enter(State.READY, signal);
+                        } else if (signal.event == Event.ATTACH && devices.contains(target)
+                                && target.state == State.INIT) {
+                            attach(target);
+                        } else if (signal.event == Event.ADVERTISE_CHANGES
+                                && (target.state == State.READY || target.state == State.ALERT)) {
+                            target.advertiseChanges();
                         }
                         break;
                     case DISCONNECTED:
-                        if (previousState != State.DISCONNECTED) {
-                            LOGGER.log(Level.INFO, "--> disconnected");
-                            previousState = State.DISCONNECTED;
+                        int maxAttempts = configuration.getMaxConnectAttempts();
+                        /* a lost connection isn't a failed attempt, only the reconnects after it are */
+                        if (maxAttempts > 0 && failedConnects >= maxAttempts) {
+                            LOGGER.log(Level.SEVERE, () -> String.format("Giving up after %d connection attempts", maxAttempts));
+                            enter(State.LOST, null);
+                            return;
+                        }
+                        signal = awaitRetry();
+                        if (signal == null || signal.event == Event.RECONNECTED) {
+                            enter(State.INIT, signal);
+                        } else if (signal.event == Event.SHUTDOWN) {
+                            return;
                         }
-                        Thread.sleep(configuration.getDisconnectRetry());
-                        state = State.INIT;
                         break;
                     default:
-                        break;
+                        return;
                 }
-
-                Thread.sleep(50);
             }
         } catch (InterruptedException e) {
             LOGGER.log(Level.SEVERE, "State machine interrupted", e);
         }
     };
 
+    /**
+     * Switches to the next state and performs its entry actions. Only called by
+     * the state machine thread.
+     *
+     * @param cause the signal that caused the transition or null
+     */
+    private void enter(State next, Signal cause) {
+        if (next == State.DISCONNECTED && (state == State.READY || state == State.ALERT)) {
+            reconnecting = true;
+            disconnectedAt = System.nanoTime();
+        }
+        state = next;
+        String prefix = gateway != null ? configuration.getDeviceID() + " " : "";
+        if (cause != null) {
+            LOGGER.log(Level.FINE, () -> String.format("Handled %s after %d µs", cause.event,
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - cause.postedAt)));
+        }
+        LOGGER.log(Level.INFO, prefix + "--> " + next.toString().toLowerCase());
+
+        if (next == State.READY || next == State.ALERT) {
+            if (client.isConnected()) {
+                publishStateUpdate();
+            }
+        } else if (next == State.DISCONNECTED) {
+            configuration.getStatsScheduler().unregister(this);
+            outbox.hold();
+            for (Homie device : devices) {
+                device.enter(State.DISCONNECTED, cause);
+            }
+        }
+    }
+
+    /**
+     * Publishes everything that was held back while connecting and enters the
+     * ready state.
+     */
+    private void ready(long connectStart) {
+        outbox.flush(this::publishNow);
+        configuration.getStatsScheduler().register(this, configuration.getStatsInterval());
+        long now = System.nanoTime();
+        timeToReady = Duration.ofNanos(now - connectStart);
+        metrics.timeToReady.record(now - connectStart);
+        if (reconnecting) {
+            reconnecting = false;
+            metrics.reconnects.increment();
+            metrics.reconnectDuration.record(now - disconnectedAt);
+        }
+        LOGGER.log(Level.INFO, () -> String.format("%s ready %d ms after connecting",
+                configuration.getDeviceID(), timeToReady.toMillis()));
+        enter(State.READY, null);
+    }
+
+    /**
+     * Advertises a device that was added to the gateway while connected.
+     */
+    private void attach(Homie device) {
+        long start = System.nanoTime();
+        List<CompletionStage<Void>> pending = new ArrayList<>();
+        try {
+            IMqttToken subscription = device.advertise(client, inflightWindow, pending);
+            awaitAdvertisement(pending, subscription == null ? new IMqttToken[0] : new IMqttToken[]{subscription});
+            device.subscribed = true;
+            device.ready(start);
+        } catch (MqttException | CompletionException e) {
+            LOGGER.log(Level.WARNING, "Could not advertise device " + device.configuration.getDeviceID(), e);
+        }
+    }
+
+    /**
+     * Waits for the next backoff delay to pass. Returns early with a signal if the
+     * client reconnected by itself or a shutdown was requested.
+     *
+     * @return the signal or null once the delay passed
+     */
+    private Signal awaitRetry() throws InterruptedException {
+        long delay = backoff.nextDelay();
+        LOGGER.log(Level.INFO, () -> String.format("Reconnecting in %d ms", delay));
+        long retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        while (true) {
+            Signal signal = events.poll(retryAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (signal == null || signal.event == Event.RECONNECTED || signal.event == Event.SHUTDOWN) {
+                return signal;
+            }
+        }
+    }
+
+    /**
+     * Publishes nodes and properties that were added or changed after the
+     * device was advertised. The messages are not awaited.
+     */
+    private void advertiseChanges() {
+        advertisementRequested.set(false);
+        List<CompletionStage<Void>> pending = new ArrayList<>();
+        boolean nodesChanged = false;
+        for (Node node : nodes.values()) {
+            nodesChanged |= node.advertiseChanges(pending);
+        }
+        if (nodesChanged) {
+            publishAttribute("$nodes", String.join(",", nodes.keySet()));
+        }
+    }
+
+    /**
+     * Asks the state machine to advertise changes of the device model. Several
+     * requests are coalesced, a full advertisement makes them unnecessary.
+     */
+    void requestAdvertisement() {
+        if (advertisementRequested.compareAndSet(false, true)) {
+            signal(Event.ADVERTISE_CHANGES);
+        }
+    }
+
+    private void signal(Event event) {
+        if (gateway != null) {
+            gateway.events.add(new Signal(event, this));
+        } else {
+            events.add(new Signal(event, null));
+        }
+    }
+
+    /**
+     * Forwards connection events of the given client to the state machine.
+     * Events of clients that were replaced in the meantime are ignored.
+     */
+    private MqttCallbackExtended connectionCallback(MqttAsyncClient c) {
+        return new MqttCallbackExtended() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                if (c == client) {
+                    LOGGER.log(Level.WARNING, "Connection lost", cause);
+                    signal(Event.CONNECTION_LOST);
+                }
+            }
+
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                /* only automatic reconnects are signalled, the initial connect is awaited in connect() */
+                if (reconnect && c == client) {
+                    signal(Event.RECONNECTED);
+                }
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                /*
+                 * Subscriptions made by this client have their own listener. Messages end up here
+                 * for subscriptions a resumed session kept from a previous client.
+                 */
+                if (topic.startsWith(getBroadcastPath())) {
+                    broadcastListener.messageArrived(topic, message);
+                } else if (topic.startsWith(getDevicePath())) {
+                    setMessageRouter.messageArrived(topic, message);
+                } else {
+                    for (Homie device : devices) {
+                        if (topic.startsWith(device.getDevicePath())) {
+                            device.setMessageRouter.messageArrived(topic, message);
+                            return;
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                /* completion is tracked per publish */
+            }
+        };
+    }
+
     /**
      * Initialize a new Homie instance with the configuration and firmware name
      * and version.
@@ -147,6 +388,9 @@ public class Homie {
         this.firmwareName = firmwareName;
         this.firmwareVersion = firmwareVersion;
         this.options = new MqttConnectOptions();
+        this.outbox = createOutbox(c);
+        this.journalPersistence = createJournalPersistence(c);
+        this.gateway = null;
     }
 
     /**
@@ -159,30 +403,127 @@ public class Homie {
         this.firmwareName = firmwareName;
         this.firmwareVersion = firmwareVersion;
         this.options = options;
+        this.outbox = createOutbox(c);
+        this.journalPersistence = createJournalPersistence(c);
+        this.gateway = null;
+    }
+
+    /**
+     * Initialize a device hosted by a gateway. It shares the connection and
+     * state machine of the gateway.
+     */
+    Homie(Homie gateway, Configuration c, String firmwareName, String firmwareVersion) {
+        this.configuration = c;
+        this.firmwareName = firmwareName;
+        this.firmwareVersion = firmwareVersion;
+        this.options = gateway.options;
+        this.outbox = createOutbox(c);
+        this.journalPersistence = null;
+        this.gateway = gateway;
     }
 
     /**
      * Calling setup causes the state machine to start and Homie to connect.
      */
     public void setup() {
+        if (gateway != null) {
+            throw new UnsupportedOperationException("Devices of a gateway are connected by the gateway");
+        }
+        events.clear();
+        failedConnects = 0;
+        reopenOutbox();
+        for (Homie device : devices) {
+            device.reopenOutbox();
+        }
+        backoff = new ReconnectBackoff(configuration.getDisconnectRetry(),
+                Math.max(configuration.getDisconnectRetry(), configuration.getMaxDisconnectRetry()), new Random());
         stateMachineThread = new Thread(stateMachine);
         stateMachineThread.start();
     }
 
+    private static Outbox createOutbox(Configuration c) {
+        return new Outbox(c.getOutboxCapacity(), c.getOutboxOverflowPolicy(), openOutboxJournal(c));
+    }
+
+    private static SegmentJournal openOutboxJournal(Configuration c) {
+        if (c.getPersistenceDirectory() == null) {
+            return null;
+        }
+        try {
+            return new SegmentJournal(Paths.get(c.getPersistenceDirectory(), c.getDeviceID(), "outbox"),
+                    c.getJournalSegmentSize(), c.getJournalCompactionPolicy());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not open the outbox journal, queued messages are kept in memory", e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the outbox journal again if it was closed by a shutdown.
+     */
+    private void reopenOutbox() {
+        if (outbox.isClosed()) {
+            outbox.reopen(openOutboxJournal(configuration));
+        }
+    }
+
+    private static JournalPersistence createJournalPersistence(Configuration c) {
+        if (c.getPersistenceDirectory() == null) {
+            return null;
+        }
+        return new JournalPersistence(Paths.get(c.getPersistenceDirectory(), c.getDeviceID(), "inflight"),
+                c.getJournalSegmentSize(), c.getJournalCompactionPolicy());
+    }
+
+    /**
+     * Registers a listener for a set topic of the form node/property/set. This
+     * is a local operation: a single wildcard subscription covers all of them.
+     */
     protected void registerListener(String topic, IMqttMessageListener listener) {
         listeners.put(topic, listener);
     }
 
-    private void subscribeListeners() {
-        for (Map.Entry<String, IMqttMessageListener> entry : listeners.entrySet()) {
-            try {
-                client.subscribe(buildPath(entry.getKey()), entry.getValue());
-            } catch (MqttException ex) {
-                LOGGER.log(Level.WARNING,
-                        String.format("Was not able to subscribe listener for topic '%s'", entry.getKey()), ex);
+    /**
+     * Subscribes to the set topics of all properties with a single wildcard.
+     *
+     * @return the token of the subscription
+     */
+    private IMqttToken subscribeListeners() throws MqttException {
+        return client.subscribe(getSetTopicFilter(), 1, setMessageRouter);
+    }
+
+    private String getSetTopicFilter() {
+        return getDevicePath() + "+/+/set";
+    }
+
+    private final IMqttMessageListener broadcastListener = new IMqttMessageListener() {
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            String level = topic.replace(getBroadcastPath(), "");
+            if (broadcastReceiver != null) {
+                broadcastReceiver.broadcastReceived(level, message.toString());
+            }
+            /* a single subscription serves all hosted devices */
+            for (Homie device : devices) {
+                if (device.broadcastReceiver != null
+                        && device.getBroadcastPath().equals(getBroadcastPath())) {
+                    device.broadcastReceiver.broadcastReceived(level, message.toString());
+                }
             }
         }
-    }
+    };
+
+    private final IMqttMessageListener setMessageRouter = new IMqttMessageListener() {
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            IMqttMessageListener listener = listeners.route(topic, getDevicePath().length());
+            if (listener != null) {
+                listener.messageArrived(topic, message);
+            } else {
+                LOGGER.log(Level.FINE, () -> String.format("Ignoring message to '%s' without listener", topic));
+            }
+        }
+    };
 
     protected void deregisterListener(String topic) {
         listeners.remove(topic);
@@ -191,10 +532,19 @@ public class Homie {
     private boolean connect() {
         try {
             if (client != null && client.isConnected()) {
-                client.disconnect();
+                client.disconnect().waitForCompletion();
             }
 
-            client = new MqttClient(configuration.getBrokerUrl(), configuration.getDeviceID(), new MemoryPersistence());
+            /* the client reconnects in place, a new one is only needed if broker or ID changed */
+            if (client != null && (!client.getServerURI().equals(configuration.getBrokerUrl())
+                    || !client.getClientId().equals(configuration.getDeviceID()))) {
+                closeClient();
+            }
+            if (client == null) {
+                MqttClientPersistence persistence = journalPersistence != null ? journalPersistence : new MemoryPersistence();
+                client = createClient(configuration.getBrokerUrl(), configuration.getDeviceID(), persistence);
+                client.setCallback(connectionCallback(client));
+            }
 
             if (configuration.getBrokerPassword() != null && !configuration.getBrokerPassword().isEmpty()) {
                 options.setPassword(configuration.getBrokerPassword().toCharArray());
@@ -207,39 +557,43 @@ public class Homie {
              * If the user didn't set a custom MaxInFlight, we'll try to pick a good default
              */
             if (options.getMaxInflight() == MAX_INFLIGHT_DEFAULT) {
-                options.setMaxInflight(
-                        Math.max(MAX_INFLIGHT_DEFAULT, nodes.values().stream().mapToInt(Node::getPropCount).sum() * 2));
+                int propCount = getPropCount() + devices.stream().mapToInt(Homie::getPropCount).sum();
+                options.setMaxInflight(Math.max(MAX_INFLIGHT_DEFAULT, propCount * 2));
             }
 
-            /* Last will will be used in case of an ungraceful disconnect */
-            options.setWill(buildPath("$state"), State.LOST.toString().toLowerCase().getBytes(), 1, true);
-            client.connect(options);
-
-            if (broadcastReceiver != null) {
-                IMqttMessageListener listener = new IMqttMessageListener() {
-                    @Override
-                    public void messageArrived(String topic, MqttMessage message) throws Exception {
-                        broadcastReceiver.broadcastReceived(topic.replace(getBroadcastPath(), ""), message.toString());
-                    }
-                };
-                client.subscribe(getBroadcastPath() + "#", listener);
+            /*
+             * Never have more unacknowledged publishes outstanding than the client accepts. Once the
+             * window is exhausted, publishes wait for a slot instead of failing with MAX_INFLIGHT.
+             * Publishes still waiting for the previous connection fail on the disconnected client.
+             */
+            if (inflightWindow != null) {
+                inflightWindow.abandon();
             }
+            inflightWindow = new InflightWindow(options.getMaxInflight(), configuration.getOutboxCapacity(),
+                    configuration.getOutboxOverflowPolicy());
 
-            if (statsTimer != null) {
-                statsTimer.cancel();
+            /* Last will will be used in case of an ungraceful disconnect */
+            options.setWill(buildPath("$state"), State.LOST.getPayload(), 1, true);
+            if (configuration.isResumeSessions()) {
+                options.setCleanSession(false);
             }
+            IMqttToken connectToken = client.connect(options);
+            connectToken.waitForCompletion();
 
-            statsTimer = new Timer();
-
-            TimerTask statsTask = new TimerTask() {
-                @Override
-                public void run() {
-                    sendStats();
+            if (!configuration.isResumeSessions() || !connectToken.getSessionPresent()) {
+                /* a new session: everything has to be subscribed and advertised again */
+                startSession();
+                for (Homie device : devices) {
+                    device.startSession();
                 }
-            };
+            } else {
+                LOGGER.log(Level.INFO, "Resumed the previous session");
+            }
+
+            if ((broadcastReceiver != null || hostsDevices) && !subscribed) {
+                client.subscribe(getBroadcastPath() + "#", 1, broadcastListener).waitForCompletion();
+            }
 
-            statsTimer.scheduleAtFixedRate(statsTask, configuration.getStatsInterval(),
-                    configuration.getStatsInterval());
             return true;
         } catch (MqttException e) {
             LOGGER.log(Level.SEVERE, "Could not connect", e);
@@ -247,100 +601,390 @@ public class Homie {
         }
     }
 
-    private void publishStateUpdate() {
-        publish("$state", state.toString().toLowerCase(), true);
+    private void startSession() {
+        advertisedAttributes.clear();
+        subscribed = false;
     }
 
-    private void sendAttributes() {
-        publish("$homie", HOMIE_CONVENTION, true);
-        publish("$implementation", IMPLEMENTATION, true);
-        publish("$stats/interval", Integer.toString(configuration.getStatsInterval()), true);
-        publish("$fw/name", firmwareName, true);
-        publish("$fw/version", firmwareVersion, true);
-        publish("$extensions", "", true);
+    private int getPropCount() {
+        return nodes.values().stream().mapToInt(Node::getPropCount).sum();
+    }
+
+    /**
+     * Advertises the device, its nodes and properties and subscribes all
+     * listeners. Nothing is awaited individually: all messages are pipelined
+     * and the acknowledgements are collected at the end.
+     *
+     * @return true if everything was acknowledged by the broker
+     */
+    boolean advertise() {
+        List<CompletionStage<Void>> pending = new ArrayList<>();
+        List<IMqttToken> subscriptions = new ArrayList<>();
+
+        try {
+            subscriptions.add(advertise(client, inflightWindow, pending));
+            for (Homie device : devices) {
+                subscriptions.add(device.advertise(client, inflightWindow, pending));
+            }
+            subscriptions.removeIf(token -> token == null);
+            awaitAdvertisement(pending, subscriptions.toArray(new IMqttToken[0]));
+            subscribed = true;
+            for (Homie device : devices) {
+                device.subscribed = true;
+            }
+            return true;
+        } catch (MqttException | CompletionException e) {
+            LOGGER.log(Level.WARNING, "Could not advertise device", e);
+            return false;
+        }
+    }
+
+    /**
+     * Starts advertising this device over the given connection. The messages
+     * are added to pending.
+     *
+     * @return the token of the subscription or null if it still exists in a resumed session
+     */
+    private IMqttToken advertise(MqttAsyncClient c, InflightWindow window, List<CompletionStage<Void>> pending)
+            throws MqttException {
+        if (gateway != null) {
+            client = c;
+            inflightWindow = window;
+            state = State.INIT;
+        }
+
+        /* everything is advertised from scratch, changes made from now on are requested again */
+        advertisementRequested.set(false);
+
+        /* the first message we have to send is the init state */
+        pending.add(publishStateUpdate());
+        sendAttributes(pending);
+        publishNodes(pending);
+        return subscribed ? null : subscribeListeners();
+    }
+
+    private static void awaitAdvertisement(List<CompletionStage<Void>> pending, IMqttToken[] subscriptions)
+            throws MqttException {
+        CompletableFuture.allOf(pending.stream()
+                .map(CompletionStage::toCompletableFuture)
+                .toArray(CompletableFuture[]::new)).join();
+        for (IMqttToken subscription : subscriptions) {
+            subscription.waitForCompletion();
+        }
+    }
+
+    private CompletionStage<Void> publishStateUpdate() {
+        return publishRetained("$state", state.getPayload());
+    }
+
+    private void sendAttributes(List<CompletionStage<Void>> pending) {
+        pending.add(publishAttribute("$homie", HOMIE_CONVENTION));
+        pending.add(publishAttribute("$implementation", IMPLEMENTATION));
+        pending.add(publishAttribute("$stats/interval", Integer.toString(configuration.getStatsInterval())));
+        pending.add(publishAttribute("$fw/name", firmwareName));
+        pending.add(publishAttribute("$fw/version", firmwareVersion));
+        pending.add(publishAttribute("$extensions", ""));
 
         /* Device attributes */
-        publish("$name", configuration.getDeviceName(), true);
+        pending.add(publishAttribute("$name", configuration.getDeviceName()));
     }
 
-    private void sendStats() {
+    /**
+     * Publishes the stats. Called on the thread the {@link StatsScheduler}
+     * shares between devices, so it must not block.
+     */
+    void sendStats() {
         long uptime = Duration.between(bootTime, ZonedDateTime.now()).getSeconds();
-        publish("$stats/uptime", Long.toString(uptime), true);
+        publishStat("$stats/uptime", Long.toString(uptime));
 
         if (cpuTemperatureFunction != null) {
-            publish("$stats/cputemp", cpuTemperatureFunction.apply(null), true);
+            publishStat("$stats/cputemp", cpuTemperatureFunction.apply(null));
         }
 
         if (cpuLoadFunction != null) {
-            publish("$stats/cpuload", cpuLoadFunction.apply(null), true);
+            publishStat("$stats/cpuload", cpuLoadFunction.apply(null));
         }
     }
 
     /**
-     * Publish an MQTT message.
+     * Stats keep coming while the broker doesn't acknowledge, so unlike
+     * attributes they are dropped if too many wait for the in-flight window.
      */
-    protected void publish(String topic, String payload, Boolean retained) {
-        if (client != null && client.isConnected()) {
-            MqttMessage message = new MqttMessage();
-            message.setRetained(retained);
-            message.setQos(1);
-            message.setPayload(payload.getBytes(UTF_8));
-            try {
-                client.publish(buildPath(topic), message);
-            } catch (MqttException e) {
-                LOGGER.log(Level.SEVERE, "Could not publish message", e);
-            }
-        } else {
-            LOGGER.log(Level.WARNING,
-                    () -> String.format("Couldn't publish message to topic '%s' - not connected.", topic));
+    private void publishStat(String topic, String payload) {
+        MqttMessage message = new SharedPayloadMessage(payload.getBytes(UTF_8));
+        message.setRetained(true);
+        message.setQos(1);
+        publishNow(attributeTopic(topic), message);
+    }
+
+    /**
+     * Publish a retained homie attribute right away, bypassing the outbox. In a
+     * resumed session, attributes that the broker already acknowledged with
+     * the same value are skipped.
+     */
+    protected CompletionStage<Void> publishAttribute(String topic, String payload) {
+        if (!configuration.isResumeSessions()) {
+            return publishRetained(topic, payload);
         }
+        if (payload.equals(advertisedAttributes.get(topic))) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletionStage<Void> result = publishRetained(topic, payload);
+        result.thenRun(() -> advertisedAttributes.put(topic, payload));
+        return result;
+    }
+
+    /**
+     * Publish a retained homie attribute right away, bypassing the outbox.
+     */
+    private CompletionStage<Void> publishRetained(String topic, String payload) {
+        return publishRetained(topic, payload.getBytes(UTF_8));
+    }
+
+    private CompletionStage<Void> publishRetained(String topic, byte[] payload) {
+        MqttMessage message = new SharedPayloadMessage(payload);
+        message.setRetained(true);
+        message.setQos(1);
+        return publishNow(attributeTopic(topic), message, false);
     }
 
     /**
      * Publish an MQTT message.
+     */
+    protected CompletionStage<Void> publish(String topic, String payload, Boolean retained) {
+        return publishValue(buildPath(topic), payload.getBytes(UTF_8), retained);
+    }
+
+    /**
+     * Publish an already encoded payload. The array is handed to the MQTT
+     * client without copying and must not be modified afterwards.
+     */
+    protected CompletionStage<Void> publish(String topic, byte[] payload, Boolean retained) {
+        return publishValue(buildPath(topic), payload, retained);
+    }
+
+    /**
+     * Publish the remaining bytes of the buffer and advance its position. The
+     * backing array is used without copying if the remaining bytes cover all
+     * of it.
+     */
+    protected CompletionStage<Void> publish(String topic, ByteBuffer payload, Boolean retained) {
+        return publishValue(buildPath(topic), PayloadEncoder.wrap(payload), retained);
+    }
+
+    /**
+     * Publish an encoded value to a topic that already contains the device
+     * path. The payload is handed to the MQTT client as is and must not be
+     * modified afterwards.
+     */
+    CompletionStage<Void> publishValue(String fullTopic, byte[] payload, boolean retained) {
+        MqttMessage message = new SharedPayloadMessage(payload);
+        message.setRetained(retained);
+        message.setQos(1);
+        return publish(fullTopic, message);
+    }
+
+    /**
+     * Publish an MQTT message without waiting for the broker. The returned stage
+     * completes once the message was acknowledged and completes exceptionally if it
+     * could not be delivered. While the in-flight window is full, the message waits
+     * for a slot without blocking the caller. At most outboxCapacity messages wait,
+     * further ones are dropped according to the outbox overflow policy.
+     * While the device is not ready, the message is held back in the outbox and
+     * published as soon as the device is ready again.
      * WARNING: Posting to the wrong topic can cause issues with the homie
      * convention.
      */
-    public boolean publish(String topic, MqttMessage message) {
-        if (client != null && client.isConnected()) {
-            try {
-                client.publish(topic, message);
-            } catch (MqttException e) {
-                LOGGER.log(Level.SEVERE, "Could not publish message", e);
-                return false;
-            }
-        } else {
+    public CompletionStage<Void> publish(String topic, MqttMessage message) {
+        CompletableFuture<Void> queued = outbox.offer(topic, message);
+        if (queued != null) {
+            return queued;
+        }
+        return publishNow(topic, message);
+    }
+
+    private CompletionStage<Void> publishNow(String topic, MqttMessage message) {
+        return publishNow(topic, message, true);
+    }
+
+    /**
+     * @param droppable whether the message may be dropped if too many
+     * messages wait for the in-flight window. Attributes are never dropped,
+     * their number is bounded by the device model.
+     */
+    private CompletionStage<Void> publishNow(String topic, MqttMessage message, boolean droppable) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        MqttAsyncClient c = client;
+        InflightWindow window = inflightWindow;
+
+        if (c == null || !c.isConnected()) {
             LOGGER.log(Level.WARNING,
                     () -> String.format("Couldn't publish message to topic '%s' - not connected.", topic));
-            return false;
+            if (state == State.READY || state == State.ALERT) {
+                /* the client was closed without reporting a lost connection */
+                signal(Event.CONNECTION_LOST);
+            }
+            metrics.publishesDropped.increment();
+            result.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+            return result;
+        }
+
+        if (window.tryAcquire()) {
+            send(c, window, topic, message, result);
+        } else {
+            /* never block, the caller may be the client's callback thread that has to release the window */
+            Runnable publish = () -> send(c, window, topic, message, result);
+            if (droppable) {
+                window.submit(publish, () -> {
+                    metrics.publishesDropped.increment();
+                    LOGGER.log(Level.WARNING, () -> String.format(
+                            "Too many messages wait for the broker, dropped message to topic '%s'", topic));
+                    result.completeExceptionally(new IllegalStateException(
+                            "Too many messages wait for the broker, message to topic '" + topic + "' was dropped"));
+                });
+            } else {
+                window.submit(publish);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hands the message to the client. The caller holds a slot of the window,
+     * it is released once the message completed.
+     */
+    private void send(MqttAsyncClient c, InflightWindow window, String topic, MqttMessage message,
+                      CompletableFuture<Void> result) {
+        long start = System.nanoTime();
+        metrics.inFlight.increment();
+        try {
+            c.publish(topic, message, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    metrics.publishesSent.increment();
+                    metrics.ackLatency.record(System.nanoTime() - start);
+                    metrics.inFlight.decrement();
+                    result.complete(null);
+                    window.release();
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    metrics.publishesFailed.increment();
+                    metrics.inFlight.decrement();
+                    LOGGER.log(Level.SEVERE, "Could not publish message", exception);
+                    result.completeExceptionally(exception);
+                    window.release();
+                }
+            });
+        } catch (MqttException | RuntimeException e) {
+            metrics.publishesFailed.increment();
+            metrics.inFlight.decrement();
+            LOGGER.log(Level.SEVERE, "Could not publish message", e);
+            result.completeExceptionally(e);
+            window.release();
         }
-        return true;
     }
 
-    private void publishNodes() {
+    private void publishNodes(List<CompletionStage<Void>> pending) {
         if (nodes.size() > 0) {
             String n = String.join(",", nodes.keySet());
-            publish("$nodes", n, true);
+            pending.add(publishAttribute("$nodes", n));
 
-            nodes.forEach((key, value) -> value.onConnect());
+            nodes.forEach((key, value) -> value.onConnect(pending));
         } else {
-            publish("$nodes", "", true);
+            pending.add(publishAttribute("$nodes", ""));
+        }
+    }
+
+    String buildPath(String attribute) {
+        return getDevicePath() + attribute;
+    }
+
+    /**
+     * Returns the topic prefix of this device including the trailing slash. The
+     * same instance is returned for as long as base topic and device ID stay the
+     * same.
+     */
+    String getDevicePath() {
+        String baseTopic = configuration.getBaseTopic();
+        String deviceID = configuration.getDeviceID();
+        String[] path = devicePath;
+        if (path[0] != baseTopic || path[1] != deviceID) {
+            path = new String[]{baseTopic, deviceID, baseTopic + "/" + deviceID + "/"};
+            devicePath = path;
         }
+        return path[2];
+    }
+
+    private String attributeTopic(String attribute) {
+        CachedTopic topic = attributeTopics.get(attribute);
+        if (topic == null) {
+            topic = new CachedTopic(this, attribute);
+            attributeTopics.put(attribute, topic);
+        }
+        return topic.get();
+    }
+
+    Configuration getConfiguration() {
+        return configuration;
+    }
+
+    Outbox getOutbox() {
+        return outbox;
+    }
+
+    void setMessageDropped() {
+        metrics.setMessagesDropped.increment();
     }
 
-    private String buildPath(String attribute) {
-        return configuration.getBaseTopic() + "/" + configuration.getDeviceID() + "/" + attribute;
+    /**
+     * Number of set messages of all properties that were dropped because the
+     * set callbacks couldn't keep up.
+     */
+    public long getDroppedSetMessages() {
+        return metrics.getSetMessagesDropped();
+    }
+
+    void setMessageRejected() {
+        metrics.setMessagesRejected.increment();
+    }
+
+    void setMessageReceived() {
+        metrics.setMessagesReceived.increment();
+    }
+
+    void setMessageHandled(long receivedAt) {
+        metrics.setCallbackLatency.record(System.nanoTime() - receivedAt);
+    }
+
+    /**
+     * Number of set messages of all properties that were rejected because the
+     * value was invalid or outside of the property's format.
+     */
+    public long getRejectedSetMessages() {
+        return metrics.getSetMessagesRejected();
+    }
+
+    /**
+     * Returns the timer shared by all properties of all devices.
+     */
+    TimerWheel getTimerWheel() {
+        return TimerWheel.getDefault();
     }
 
     private String getBroadcastPath() {
         return configuration.getBaseTopic() + "/" + "$broadcast" + "/";
     }
 
+    /**
+     * Requests the alert state to be entered or left. The state machine
+     * performs the transition asynchronously.
+     */
     public void setAlert(boolean alertStatus) {
         if (alertStatus) {
             if (state == State.READY) {
-                previousState = state;
-                state = State.ALERT;
+                signal(Event.ALERT);
             } else if (state == State.ALERT) {
                 LOGGER.log(Level.FINE, "Homie device is already in \"alert\" state.");
             } else {
@@ -348,8 +992,7 @@ public class Homie {
             }
         } else {
             if (state == State.ALERT) {
-                previousState = state;
-                state = State.READY;
+                signal(Event.CLEAR_ALERT);
             } else if (state == State.READY) {
                 LOGGER.log(Level.FINE, "Homie device is already in \"ready\" state.");
             } else {
@@ -358,36 +1001,126 @@ public class Homie {
         }
     }
 
+    /**
+     * Disconnects the device. A device hosted by a gateway publishes its
+     * disconnected state and is removed from the gateway.
+     */
     public void shutdown() {
         LOGGER.log(Level.INFO, "Shutdown request received");
-        shutdownRequest = true;
+        if (gateway != null) {
+            gateway.removeDevice(this);
+            return;
+        }
+        signal(Event.SHUTDOWN);
         try {
-            stateMachineThread.join();
+            if (stateMachineThread != null) {
+                stateMachineThread.join();
+            }
         } catch (InterruptedException e) {
             LOGGER.log(Level.INFO, "Interrupted", e);
         }
         disconnect();
+        if (client != null) {
+            closeClient();
+        }
+        configuration.getStatsScheduler().unregister(this);
+        outbox.hold();
+        outbox.close();
 
         /* reset state variables so that a future re-initialization is possible */
-        previousState = State.DISCONNECTED;
         state = State.INIT;
-        shutdownRequest = false;
+        events.clear();
+        for (Homie device : devices) {
+            device.configuration.getStatsScheduler().unregister(device);
+            device.outbox.hold();
+            device.outbox.close();
+            device.state = State.INIT;
+        }
 
         LOGGER.log(Level.INFO, "Terminating");
     }
 
-    private void disconnect() {
+    /**
+     * Creates the MQTT client. Benchmarks replace it with an in-process
+     * transport.
+     */
+    MqttAsyncClient createClient(String serverURI, String clientId, MqttClientPersistence persistence)
+            throws MqttException {
+        return new MqttAsyncClient(serverURI, clientId, persistence);
+    }
+
+    /**
+     * Releases the threads and persistence of the client.
+     */
+    private void closeClient() {
         try {
             if (client.isConnected()) {
-                publish("$state", State.DISCONNECTED.toString().toLowerCase(), true);
-                client.disconnect();
+                client.disconnectForcibly();
+            }
+            client.close();
+        } catch (MqttException e) {
+            LOGGER.log(Level.INFO, "Failed to close the client", e);
+        }
+        client = null;
+    }
+
+    private void disconnect() {
+        try {
+            if (client != null && client.isConnected()) {
+                for (Homie device : devices) {
+                    device.publishRetained("$state", State.DISCONNECTED.getPayload());
+                }
+                publishRetained("$state", State.DISCONNECTED.getPayload());
+                /* disconnect() quiesces, so the state update above is still delivered */
+                client.disconnect().waitForCompletion();
             }
-            statsTimer.cancel();
         } catch (MqttException e) {
             LOGGER.log(Level.INFO, "Failed to disconnect", e);
         }
     }
 
+    /**
+     * Makes this instance a gateway that hosts other devices on its connection.
+     */
+    void hostDevices() {
+        hostsDevices = true;
+    }
+
+    /**
+     * Adds a device to this gateway. It is advertised right away if the
+     * gateway is connected or together with the gateway otherwise.
+     */
+    void addDevice(Homie device) {
+        String deviceID = device.configuration.getDeviceID();
+        if (deviceID.equals(configuration.getDeviceID())
+                || devices.stream().anyMatch(d -> d.configuration.getDeviceID().equals(deviceID))) {
+            throw new IllegalArgumentException("A device with ID '" + deviceID + "' is already hosted by this gateway");
+        }
+        device.reopenOutbox();
+        devices.add(device);
+        events.add(new Signal(Event.ATTACH, device));
+    }
+
+    private void removeDevice(Homie device) {
+        if (!devices.remove(device)) {
+            return;
+        }
+
+        MqttAsyncClient c = client;
+        if (c != null && c.isConnected()) {
+            device.publishRetained("$state", State.DISCONNECTED.getPayload());
+            try {
+                c.unsubscribe(device.getSetTopicFilter());
+            } catch (MqttException e) {
+                LOGGER.log(Level.WARNING, "Could not unsubscribe removed device", e);
+            }
+        }
+        device.configuration.getStatsScheduler().unregister(device);
+        device.outbox.hold();
+        device.outbox.close();
+        device.state = State.DISCONNECTED;
+    }
+
     /**
      * Generates and registers a new node within Homie.
      */
@@ -396,13 +1129,16 @@ public class Homie {
             throw new IllegalArgumentException("Node id doesn't match homie's allowed topic ID pattern");
         }
 
-        if (nodes.containsKey(id)) {
-            return nodes.get(id);
-        } else {
-            Node n = new Node(this, id, type);
-            nodes.put(id, n);
-            return n;
+        Node n = nodes.get(id);
+        if (n == null) {
+            Node created = new Node(this, id, type);
+            n = nodes.putIfAbsent(id, created);
+            if (n == null) {
+                requestAdvertisement();
+                return created;
+            }
         }
+        return n;
     }
 
     /**
@@ -0,0 +1,69 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+
+/**
+ * Hosts many Homie devices on a single MQTT connection. The gateway is a
+ * Homie device of its own: its last will marks the gateway as lost, while
+ * every hosted device publishes its own $state explicitly. All devices share
+ * the connection, state machine thread and timers of the gateway.
+ */
+public class HomieGateway {
+
+    private final Homie gateway;
+
+    /**
+     * Initialize a gateway. The configuration contains the broker settings
+     * and the device ID of the gateway itself.
+     */
+    public HomieGateway(Configuration c, String firmwareName, String firmwareVersion) {
+        this.gateway = new Homie(c, firmwareName, firmwareVersion);
+        this.gateway.hostDevices();
+    }
+
+    /**
+     * Initialize a gateway. The provided MqttConnectOptions will be used to set
+     * up the broker communication.
+     */
+    public HomieGateway(Configuration c, String firmwareName, String firmwareVersion, MqttConnectOptions options) {
+        this.gateway = new Homie(c, firmwareName, firmwareVersion, options);
+        this.gateway.hostDevices();
+    }
+
+    /**
+     * Returns the Homie device that represents the gateway itself.
+     */
+    public Homie getGatewayDevice() {
+        return gateway;
+    }
+
+    /**
+     * Creates a device hosted by this gateway. Only device ID, name, base topic,
+     * stats interval and outbox settings of the configuration are used, the
+     * broker settings are those of the gateway. Calling shutdown() on the
+     * device removes it from the gateway again.
+     */
+    public Homie createDevice(Configuration c, String firmwareName, String firmwareVersion) {
+        Homie device = new Homie(gateway, c, firmwareName, firmwareVersion);
+        gateway.addDevice(device);
+        return device;
+    }
+
+    /**
+     * Connects the gateway and all devices it hosts.
+     */
+    public void setup() {
+        gateway.setup();
+    }
+
+    /**
+     * Disconnects the gateway and all devices it hosts.
+     */
+    public void shutdown() {
+        gateway.shutdown();
+    }
+
+    public Homie.State getState() {
+        return gateway.getState();
+    }
+}
@@ -0,0 +1,148 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a device. Everything is recorded with
+ * striped counters on the publish and set paths, reading is only done when
+ * the metrics are exported. Durations are in nanoseconds. A histogram only
+ * allocates its buckets once it recorded a value.
+ */
+public final class HomieMetrics {
+
+    private final Homie homie;
+
+    final LongAdder publishesSent = new LongAdder();
+    final LongAdder publishesFailed = new LongAdder();
+    final LongAdder publishesDropped = new LongAdder();
+    final LongAdder inFlight = new LongAdder();
+    final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    final LongAdder reconnects = new LongAdder();
+    final LatencyHistogram reconnectDuration = new LatencyHistogram();
+    final LatencyHistogram timeToReady = new LatencyHistogram();
+
+    final LongAdder setMessagesReceived = new LongAdder();
+    final LongAdder setMessagesRejected = new LongAdder();
+    final LongAdder setMessagesDropped = new LongAdder();
+    final LatencyHistogram setCallbackLatency = new LatencyHistogram();
+
+    HomieMetrics(Homie homie) {
+        this.homie = homie;
+    }
+
+    /**
+     * Number of messages the broker acknowledged.
+     */
+    public long getPublishesSent() {
+        return publishesSent.sum();
+    }
+
+    /**
+     * Number of messages the client failed to publish.
+     */
+    public long getPublishesFailed() {
+        return publishesFailed.sum();
+    }
+
+    /**
+     * Number of messages that were discarded without trying to publish them,
+     * because the device was not connected, the outbox was full or too many
+     * messages waited for the broker's acknowledgements.
+     */
+    public long getPublishesDropped() {
+        return publishesDropped.sum() + homie.getOutbox().getDropped();
+    }
+
+    /**
+     * Number of messages handed to the client that are not acknowledged yet.
+     */
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    /**
+     * Number of messages held back in the outbox until the device is ready.
+     */
+    public long getQueued() {
+        return homie.getOutbox().size();
+    }
+
+    /**
+     * Time from handing a message to the client until the broker acknowledged it.
+     */
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * Number of times the device got ready again after losing the connection.
+     */
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    /**
+     * Time from losing the connection until the device was ready again.
+     */
+    public LatencyHistogram getReconnectDuration() {
+        return reconnectDuration;
+    }
+
+    /**
+     * Time from starting to connect until the device was ready.
+     */
+    public LatencyHistogram getTimeToReady() {
+        return timeToReady;
+    }
+
+    public long getSetMessagesReceived() {
+        return setMessagesReceived.sum();
+    }
+
+    /**
+     * Number of set messages that were rejected because the value was invalid
+     * or outside of the format.
+     */
+    public long getSetMessagesRejected() {
+        return setMessagesRejected.sum();
+    }
+
+    /**
+     * Number of set messages that were dropped because the set callbacks
+     * couldn't keep up.
+     */
+    public long getSetMessagesDropped() {
+        return setMessagesDropped.sum();
+    }
+
+    /**
+     * Time from receiving a set message until its callback returned, including
+     * the time it waited for the set callback executor.
+     */
+    public LatencyHistogram getSetCallbackLatency() {
+        return setCallbackLatency;
+    }
+
+    /**
+     * Registers all metrics with the registry, tagged with the device ID.
+     */
+    public void bindTo(MetricsRegistry registry) {
+        Map<String, String> tags = Collections.singletonMap("device", homie.getConfiguration().getDeviceID());
+        registry.counter("homie.publish.sent", tags, this::getPublishesSent);
+        registry.counter("homie.publish.failed", tags, this::getPublishesFailed);
+        registry.counter("homie.publish.dropped", tags, this::getPublishesDropped);
+        registry.gauge("homie.publish.inflight", tags, this::getInFlight);
+        registry.gauge("homie.outbox.queued", tags, this::getQueued);
+        registry.histogram("homie.publish.ack.latency", tags, ackLatency);
+        registry.counter("homie.reconnects", tags, this::getReconnects);
+        registry.histogram("homie.reconnect.duration", tags, reconnectDuration);
+        registry.histogram("homie.ready.time", tags, timeToReady);
+        registry.counter("homie.set.received", tags, this::getSetMessagesReceived);
+        registry.counter("homie.set.rejected", tags, this::getSetMessagesRejected);
+        registry.counter("homie.set.dropped", tags, this::getSetMessagesDropped);
+        registry.histogram("homie.set.callback.latency", tags, setCallbackLatency);
+    }
+}
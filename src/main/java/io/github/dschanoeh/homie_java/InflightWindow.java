@@ -0,0 +1,190 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of unacknowledged publishes without ever blocking the
+ * caller. Publishes that don't fit into the window wait in order and are
+ * handed to the client as acknowledgements release their slots.
+ * <p>
+ * Acknowledgements arrive on the MQTT client's callback thread, which is also
+ * where set callbacks and completions of published stages run. Blocking there
+ * until a slot is free would wait for an acknowledgement only that thread
+ * can deliver.
+ * <p>
+ * Publishes submitted with a reject action are droppable: at most
+ * waitingCapacity of them wait, further ones are rejected according to the
+ * overflow policy. BLOCK can't be honored without blocking and rejects the
+ * newest one like DROP_NEWEST.
+ */
+final class InflightWindow {
+
+    private static final Logger LOGGER = Logger.getLogger(InflightWindow.class.getName());
+
+    private static final class Waiting {
+        final Runnable publish;
+        /* null if the publish must not be dropped */
+        final Runnable reject;
+
+        Waiting(Runnable publish, Runnable reject) {
+            this.publish = publish;
+            this.reject = reject;
+        }
+    }
+
+    private final int capacity;
+    private final int waitingCapacity;
+    private final Configuration.OutboxOverflowPolicy overflowPolicy;
+    private final ArrayDeque<Waiting> waiting = new ArrayDeque<>();
+    private int droppable;
+    private int inFlight;
+    private boolean draining;
+
+    InflightWindow(int capacity, int waitingCapacity, Configuration.OutboxOverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.waitingCapacity = Math.max(0, waitingCapacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Takes a slot if one is free and no publish is waiting for it.
+     */
+    synchronized boolean tryAcquire() {
+        if (inFlight < capacity && waiting.isEmpty()) {
+            inFlight++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs the publish as soon as it gets a slot, right away if one is free.
+     * The publish must call {@link #release()} once it completed. It waits
+     * regardless of how many publishes are waiting already.
+     */
+    void submit(Runnable publish) {
+        submit(publish, null);
+    }
+
+    /**
+     * Like {@link #submit(Runnable)}, but the publish or an older one is
+     * rejected instead if too many are waiting already. Reject actions run on
+     * the calling thread.
+     */
+    void submit(Runnable publish, Runnable reject) {
+        Runnable rejected = null;
+        synchronized (this) {
+            if (inFlight < capacity && waiting.isEmpty()) {
+                inFlight++;
+            } else if (reject == null || droppable < waitingCapacity) {
+                enqueue(new Waiting(publish, reject));
+                publish = null;
+            } else if (overflowPolicy == Configuration.OutboxOverflowPolicy.DROP_OLDEST && droppable > 0) {
+                rejected = removeOldestDroppable();
+                enqueue(new Waiting(publish, reject));
+                publish = null;
+            } else {
+                rejected = reject;
+                publish = null;
+            }
+        }
+        if (rejected != null) {
+            rejected.run();
+        }
+        if (publish != null) {
+            publish.run();
+        }
+    }
+
+    private void enqueue(Waiting entry) {
+        waiting.add(entry);
+        if (entry.reject != null) {
+            droppable++;
+        }
+    }
+
+    private Waiting poll() {
+        Waiting entry = waiting.poll();
+        if (entry != null && entry.reject != null) {
+            droppable--;
+        }
+        return entry;
+    }
+
+    private Runnable removeOldestDroppable() {
+        Iterator<Waiting> iterator = waiting.iterator();
+        while (iterator.hasNext()) {
+            Waiting entry = iterator.next();
+            if (entry.reject != null) {
+                iterator.remove();
+                droppable--;
+                return entry.reject;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Frees a slot and runs waiting publishes on the calling thread. Releases
+     * by the publishes themselves, e.g. because they failed right away, don't
+     * recurse but are picked up by the running drain.
+     */
+    void release() {
+        synchronized (this) {
+            inFlight--;
+            if (draining || waiting.isEmpty()) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            Waiting next;
+            synchronized (this) {
+                if (inFlight >= capacity || (next = poll()) == null) {
+                    draining = false;
+                    return;
+                }
+                inFlight++;
+            }
+            run(next.publish);
+        }
+    }
+
+    /**
+     * Runs all waiting publishes regardless of the capacity. Used when the
+     * connection is replaced: they fail right away on the old client.
+     */
+    void abandon() {
+        List<Waiting> abandoned;
+        synchronized (this) {
+            abandoned = new ArrayList<>(waiting);
+            waiting.clear();
+            droppable = 0;
+            inFlight += abandoned.size();
+        }
+        for (Waiting entry : abandoned) {
+            run(entry.publish);
+        }
+    }
+
+    synchronized int waiting() {
+        return waiting.size();
+    }
+
+    private void run(Runnable publish) {
+        try {
+            publish.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Waiting publish failed", e);
+            release();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * Paho persistence that keeps unacknowledged messages in a memory-mapped
+ * {@link SegmentJournal}, so they survive a restart of the JVM. Paho clears
+ * it when connecting with a clean session, so the messages are only delivered
+ * again with {@link Configuration#setResumeSessions persistent sessions}.
+ */
+public class JournalPersistence implements MqttClientPersistence {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final CompactionPolicy compactionPolicy;
+    private SegmentJournal journal;
+
+    private static class StoredPersistable implements MqttPersistable {
+        private final byte[] data;
+        private final int headerLength;
+
+        private StoredPersistable(byte[] data) {
+            this.data = data;
+            this.headerLength = ByteBuffer.wrap(data).getInt();
+        }
+
+        @Override
+        public byte[] getHeaderBytes() {
+            return data;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return headerLength;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 4;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return data;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return data.length - 4 - headerLength;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 4 + headerLength;
+        }
+    }
+
+    public JournalPersistence(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, CompactionPolicy.deadRatio(0.5));
+    }
+
+    public JournalPersistence(Path directory, int segmentSize, CompactionPolicy compactionPolicy) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionPolicy = compactionPolicy;
+    }
+
+    /**
+     * Opens the journal. The journal belongs to this instance and not to the
+     * client ID, so opening it again while it is open is a no-op.
+     */
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (journal != null) {
+            return;
+        }
+        try {
+            journal = new SegmentJournal(directory, segmentSize, compactionPolicy);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            journal = null;
+        }
+    }
+
+    @Override
+    public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        int headerLength = persistable.getHeaderLength();
+        int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+        ByteBuffer data = ByteBuffer.allocate(4 + headerLength + payloadLength);
+        data.putInt(headerLength);
+        data.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+        if (payloadLength > 0) {
+            data.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+        }
+
+        try {
+            journal().put(key, data.array());
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public MqttPersistable get(String key) throws MqttPersistenceException {
+        byte[] data = journal().get(key);
+        return data == null ? null : new StoredPersistable(data);
+    }
+
+    @Override
+    public void remove(String key) throws MqttPersistenceException {
+        try {
+            journal().remove(key);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public Enumeration<String> keys() throws MqttPersistenceException {
+        return Collections.enumeration(journal().keys());
+    }
+
+    @Override
+    public void clear() throws MqttPersistenceException {
+        try {
+            journal().clear();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) throws MqttPersistenceException {
+        return journal().containsKey(key);
+    }
+
+    private synchronized SegmentJournal journal() throws MqttPersistenceException {
+        if (journal == null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_EXCEPTION);
+        }
+        return journal;
+    }
+}
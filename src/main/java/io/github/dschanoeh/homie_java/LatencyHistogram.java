@@ -0,0 +1,138 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, usually latencies in
+ * nanoseconds. Like an HDR histogram it uses log-linear buckets: values below
+ * 64 are counted exactly, larger values in 32 buckets per power of two, so
+ * any reported value is within 3.2% of the recorded one. Values of 2^40 ns
+ * (about 18 minutes) and above share the last bucket, the maximum is kept
+ * exactly. The 9 KB of buckets are allocated with the first value, after that
+ * recording is a few striped increments and never allocates.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HIGHEST_BIT = 39;
+    static final long HIGHEST_TRACKABLE_VALUE = (1L << (HIGHEST_BIT + 1)) - 1;
+    private static final int BUCKETS = (HIGHEST_BIT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private volatile AtomicLongArray counts;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Records a value, negative values are counted as 0.
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts().incrementAndGet(index(Math.min(value, HIGHEST_TRACKABLE_VALUE)));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * values fall, or 0 if nothing was recorded.
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        AtomicLongArray counts = this.counts;
+        if (counts == null) {
+            return 0;
+        }
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                /* the last bucket is open-ended */
+                return i == BUCKETS - 1 ? getMax() : Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears all values. Values recorded concurrently may be partially kept.
+     */
+    void reset() {
+        AtomicLongArray counts = this.counts;
+        if (counts != null) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    private AtomicLongArray counts() {
+        AtomicLongArray counts = this.counts;
+        if (counts == null) {
+            synchronized (this) {
+                counts = this.counts;
+                if (counts == null) {
+                    counts = new AtomicLongArray(BUCKETS);
+                    this.counts = counts;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Index of the bucket of a value up to {@link #HIGHEST_TRACKABLE_VALUE}.
+     */
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,9 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * This callback gets called with the parsed long value when a settable
+ * integer property was set.
+ */
+public interface LongPropertySetCallback {
+    void performSet(Property property, long value);
+}
@@ -0,0 +1,28 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Adapter to a monitoring library, see {@link HomieMetrics#bindTo}. The
+ * metrics are registered once and then read by the library whenever it
+ * exports them, so an implementation usually maps them to function counters
+ * and gauges, e.g. Micrometer's FunctionCounter and Gauge.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Registers a monotonically increasing count.
+     */
+    void counter(String name, Map<String, String> tags, LongSupplier count);
+
+    /**
+     * Registers a value that can go up and down.
+     */
+    void gauge(String name, Map<String, String> tags, LongSupplier value);
+
+    /**
+     * Registers a histogram of durations in nanoseconds.
+     */
+    void histogram(String name, Map<String, String> tags, LatencyHistogram histogram);
+}
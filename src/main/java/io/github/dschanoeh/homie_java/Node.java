@@ -2,17 +2,21 @@ package io.github.dschanoeh.homie_java;
 
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.Setter;
 
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Node {
 
-    @Getter @Setter @NonNull private String name = "";
+    /* read by the state machine when it advertises the node */
+    @Getter @NonNull private volatile String name = "";
     @Getter private final String type;
     @Getter private final String id;
     private final Homie homie;
-    private final HashMap<String, Property> properties = new HashMap<>();
+    private final ConcurrentHashMap<String, Property> properties = new ConcurrentHashMap<>();
+    private volatile boolean advertised = false;
+    private volatile boolean nameChanged = false;
 
     protected Node(Homie homie, String id, String type) {
         this.id = id;
@@ -29,12 +33,26 @@ public class Node {
             throw new IllegalArgumentException("Property name doesn't match homie's allowed topic ID pattern");
         }
 
-        if (!properties.containsKey(id)) {
-            Property p = new Property(this.homie, this, id);
-            properties.put(id, p);
-            return p;
-        } else {
-            return properties.get(id);
+        Property p = properties.get(id);
+        if (p == null) {
+            Property created = new Property(this.homie, this, id);
+            p = properties.putIfAbsent(id, created);
+            if (p == null) {
+                homie.requestAdvertisement();
+                return created;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Sets the name, it is published again if the node was already advertised.
+     */
+    public void setName(@NonNull String name) {
+        this.name = name;
+        if (advertised) {
+            nameChanged = true;
+            homie.requestAdvertisement();
         }
     }
 
@@ -44,26 +62,59 @@ public class Node {
 
     /**
      * Gets called when homie is successfully connected and allows nodes and
-     * properties to advertise their attributes.
+     * properties to advertise their attributes. The pending publishes are
+     * added to the given list so homie can await them all at once.
      */
-    protected void onConnect() {
-        sendProperties();
-        properties.forEach((key, value) -> value.onConnect());
+    protected void onConnect(List<CompletionStage<Void>> pending) {
+        advertised = true;
+        nameChanged = false;
+        sendProperties(pending);
+        properties.forEach((key, value) -> value.onConnect(pending));
+    }
+
+    /**
+     * Advertises what changed since the node was advertised: the whole node
+     * if it is new, otherwise its name, new or modified properties and the
+     * updated property list.
+     *
+     * @return true if the node itself was new
+     */
+    boolean advertiseChanges(List<CompletionStage<Void>> pending) {
+        if (!advertised) {
+            onConnect(pending);
+            return true;
+        }
+
+        if (nameChanged) {
+            nameChanged = false;
+            pending.add(homie.publishAttribute(this.getId() + "/" + "$name", this.getName()));
+        }
+        boolean propertiesChanged = false;
+        for (Property property : properties.values()) {
+            if (!property.isAdvertised()) {
+                property.onConnect(pending);
+                propertiesChanged = true;
+            }
+        }
+        if (propertiesChanged) {
+            pending.add(homie.publishAttribute(this.getId() + "/" + "$properties", String.join(",", properties.keySet())));
+        }
+        return false;
     }
 
     /**
      * Advertise supported properties
      */
-    private void sendProperties() {
-        homie.publish(this.getId() + "/" + "$type", type, true);
+    private void sendProperties(List<CompletionStage<Void>> pending) {
+        pending.add(homie.publishAttribute(this.getId() + "/" + "$type", type));
 
         if(properties.size() > 0) {
             String p = String.join(",", properties.keySet());
-            homie.publish(this.getId() + "/" + "$properties", p, true);
+            pending.add(homie.publishAttribute(this.getId() + "/" + "$properties", p));
         } else {
-            homie.publish(this.getId() + "/" + "$properties", "", true);
+            pending.add(homie.publishAttribute(this.getId() + "/" + "$properties", ""));
         }
 
-        homie.publish(this.getId() + "/" + "$name", this.getName(), true);
+        pending.add(homie.publishAttribute(this.getId() + "/" + "$name", this.getName()));
     }
 }
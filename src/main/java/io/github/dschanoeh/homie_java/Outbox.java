@@ -0,0 +1,380 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Bounded buffer for messages that are sent while homie is not ready. Held
+ * messages are published in order once the device is ready again. For
+ * retained messages only the latest value per topic is kept.
+ * <p>
+ * If a journal is given, every held message is also written to it and removed
+ * once it was published, so held messages survive a restart and are replayed
+ * in their original order. A flushed message whose publish failed because the
+ * connection was lost is queued again and stays in the journal.
+ */
+class Outbox {
+
+    private static final Logger LOGGER = Logger.getLogger(Outbox.class.getName());
+
+    private static class Entry {
+        private final String key;
+        private final String topic;
+        private MqttMessage message;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private Entry(String key, String topic, MqttMessage message) {
+            this.key = key;
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+
+    private final int capacity;
+    private final Configuration.OutboxOverflowPolicy overflowPolicy;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final HashMap<String, Entry> retained = new HashMap<>();
+    private SegmentJournal journal;
+    private long sequence;
+    private boolean holding = true;
+    /* incremented by every hold, a flush stops once it was overtaken by one */
+    private int holds;
+    private boolean closed;
+    private final LongAdder dropped = new LongAdder();
+
+    Outbox(int capacity, Configuration.OutboxOverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, null);
+    }
+
+    /**
+     * Creates an outbox that persists held messages in the given journal and
+     * restores the messages that were still held when it was last used.
+     */
+    Outbox(int capacity, Configuration.OutboxOverflowPolicy overflowPolicy, SegmentJournal journal) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.journal = journal;
+
+        if (journal != null) {
+            List<String> keys = journal.keys();
+            /* keys are fixed width hex numbers, so sorting them restores the original order */
+            Collections.sort(keys);
+            for (String key : keys) {
+                Entry entry = decode(key, journal.get(key));
+                queue.add(entry);
+                if (entry.message.isRetained()) {
+                    retained.put(entry.topic, entry);
+                }
+                sequence = Math.max(sequence, Long.parseLong(key, 16) + 1);
+            }
+            if (!queue.isEmpty()) {
+                LOGGER.log(Level.INFO, "Restored {0} queued messages", queue.size());
+            }
+        }
+    }
+
+    /**
+     * Queues the message if the outbox is currently holding messages back.
+     *
+     * @return the stage of the queued message or null if the message should be
+     * published right away
+     */
+    synchronized CompletableFuture<Void> offer(String topic, MqttMessage message) {
+        if (!holding || capacity <= 0) {
+            return null;
+        }
+
+        if (message.isRetained()) {
+            Entry existing = retained.get(topic);
+            if (existing != null) {
+                /* only the latest retained value matters, keep the position of the first one */
+                existing.message = message;
+                persist(existing);
+                return existing.result;
+            }
+        }
+
+        while (queue.size() >= capacity) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    Entry oldest = queue.poll();
+                    retained.remove(oldest.topic, oldest);
+                    unpersist(oldest);
+                    dropped.increment();
+                    oldest.result.completeExceptionally(overflow(oldest.topic));
+                    break;
+                case DROP_NEWEST:
+                    dropped.increment();
+                    CompletableFuture<Void> rejected = new CompletableFuture<>();
+                    rejected.completeExceptionally(overflow(topic));
+                    return rejected;
+                case BLOCK:
+                default:
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        CompletableFuture<Void> interrupted = new CompletableFuture<>();
+                        interrupted.completeExceptionally(e);
+                        return interrupted;
+                    }
+                    if (!holding) {
+                        return null;
+                    }
+                    break;
+            }
+        }
+
+        Entry entry = new Entry(String.format("%016x", sequence++), topic, message);
+        persist(entry);
+        queue.add(entry);
+        if (message.isRetained()) {
+            retained.put(topic, entry);
+        }
+        return entry.result;
+    }
+
+    /**
+     * Stops holding messages back and hands all queued messages to the publisher
+     * in the order they were queued. The publisher is called without holding
+     * the lock of the outbox. Messages offered meanwhile are still queued
+     * behind the ones being flushed, so they can't overtake them.
+     */
+    void flush(BiFunction<String, MqttMessage, CompletionStage<Void>> publisher) {
+        int generation;
+        synchronized (this) {
+            generation = holds;
+            if (!queue.isEmpty()) {
+                LOGGER.log(Level.INFO, "Flushing {0} queued messages", queue.size());
+            }
+        }
+
+        while (true) {
+            List<Entry> batch;
+            synchronized (this) {
+                if (holds != generation) {
+                    /* held again, the rest is published by the next flush */
+                    return;
+                }
+                if (queue.isEmpty()) {
+                    holding = false;
+                    notifyAll();
+                    return;
+                }
+                batch = new ArrayList<>(queue);
+                queue.clear();
+                retained.clear();
+                notifyAll();
+            }
+
+            for (Entry entry : batch) {
+                CompletableFuture<Void> result = entry.result;
+                publisher.apply(entry.topic, entry.message).whenComplete((v, t) -> {
+                    if (t != null && isConnectionFailure(t)) {
+                        requeue(entry);
+                        return;
+                    }
+                    /* other failures were counted by the publisher, retrying wouldn't help */
+                    unpersist(entry);
+                    if (t != null) {
+                        result.completeExceptionally(t);
+                    } else {
+                        result.complete(null);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Puts a message whose publish failed back into the queue at its original
+     * position and holds back messages until the next flush, which also stops
+     * the running one. The queue may exceed its capacity by these messages.
+     */
+    private synchronized void requeue(Entry entry) {
+        if (entry.message.isRetained()) {
+            Entry newer = retained.get(entry.topic);
+            if (newer != null) {
+                /* a newer value of the topic is queued already and replaces this one */
+                unpersist(entry);
+                newer.result.whenComplete((v, t) -> {
+                    if (t != null) {
+                        entry.result.completeExceptionally(t);
+                    } else {
+                        entry.result.complete(null);
+                    }
+                });
+                return;
+            }
+            retained.put(entry.topic, entry);
+        }
+
+        List<Entry> entries = new ArrayList<>(queue);
+        int position = 0;
+        while (position < entries.size() && entries.get(position).key.compareTo(entry.key) < 0) {
+            position++;
+        }
+        entries.add(position, entry);
+        queue.clear();
+        queue.addAll(entries);
+        hold();
+    }
+
+    private static boolean isConnectionFailure(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (!(t instanceof MqttException)) {
+            return false;
+        }
+        switch (((MqttException) t).getReasonCode()) {
+            case MqttException.REASON_CODE_CLIENT_NOT_CONNECTED:
+            case MqttException.REASON_CODE_CONNECTION_LOST:
+            case MqttException.REASON_CODE_CLIENT_DISCONNECTING:
+            case MqttException.REASON_CODE_CLIENT_CLOSED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Starts holding back all messages until the next flush.
+     */
+    synchronized void hold() {
+        holding = true;
+        holds++;
+    }
+
+    /**
+     * Closes the journal. Queued messages stay on disk and in memory until
+     * the journal is reopened.
+     */
+    synchronized void close() {
+        closed = true;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not close the outbox journal", e);
+        }
+        journal = null;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Continues journaling in the reopened journal after a close. The journal
+     * is brought in line with the queue: messages that were queued while it
+     * was closed are added, messages published meanwhile are removed.
+     */
+    synchronized void reopen(SegmentJournal journal) {
+        closed = false;
+        this.journal = journal;
+        if (journal == null) {
+            return;
+        }
+        Set<String> stale = new HashSet<>(journal.keys());
+        for (Entry entry : queue) {
+            stale.remove(entry.key);
+            if (!journal.containsKey(entry.key)) {
+                persist(entry);
+            }
+        }
+        try {
+            for (String key : stale) {
+                journal.remove(key);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not remove published messages from journal", e);
+        }
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Number of messages that were dropped because the outbox was full.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void persist(Entry entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.put(entry.key, encode(entry));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not persist queued message", e);
+        }
+    }
+
+    private synchronized void unpersist(Entry entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.remove(entry.key);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not remove queued message from journal", e);
+        }
+    }
+
+    private static byte[] encode(Entry entry) {
+        byte[] topic = entry.topic.getBytes(UTF_8);
+        byte[] payload = entry.message.getPayload();
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 4 + topic.length + payload.length);
+        buffer.put((byte) entry.message.getQos());
+        buffer.put((byte) (entry.message.isRetained() ? 1 : 0));
+        buffer.putInt(topic.length);
+        buffer.put(topic);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private static Entry decode(String key, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int qos = buffer.get();
+        boolean isRetained = buffer.get() == 1;
+        byte[] topic = new byte[buffer.getInt()];
+        buffer.get(topic);
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(isRetained);
+        return new Entry(key, new String(topic, UTF_8), message);
+    }
+
+    private static IllegalStateException overflow(String topic) {
+        LOGGER.log(Level.WARNING, () -> String.format("Outbox is full, dropped message to topic '%s'", topic));
+        return new IllegalStateException("Outbox is full, message to topic '" + topic + "' was dropped");
+    }
+}
@@ -0,0 +1,200 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Parses property values straight from MQTT payloads.
+ */
+final class PayloadDecoder {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    private PayloadDecoder() {
+    }
+
+    /**
+     * Parses a decimal integer like {@link Long#parseLong(String)} without
+     * creating a String first.
+     */
+    static long parseLong(byte[] payload) {
+        int length = payload.length;
+        if (length == 0) {
+            throw new NumberFormatException("Empty integer payload");
+        }
+
+        boolean negative = payload[0] == '-';
+        int i = negative || payload[0] == '+' ? 1 : 0;
+        if (i == length) {
+            throw new NumberFormatException("Integer payload without digits");
+        }
+
+        /* accumulate negatively so that Long.MIN_VALUE can be parsed as well */
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long result = 0;
+        for (; i < length; i++) {
+            int digit = payload[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid character in integer payload");
+            }
+            if (result < (limit + digit) / 10) {
+                throw new NumberFormatException("Integer payload out of range");
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parses a finite decimal number. Unlike {@link Double#parseDouble(String)},
+     * NaN, infinity, hexadecimal notation, type suffixes and surrounding
+     * whitespace are rejected.
+     */
+    static double parseDouble(byte[] payload) {
+        double simple = parseSimpleDouble(payload);
+        if (!Double.isNaN(simple)) {
+            return simple;
+        }
+
+        for (byte b : payload) {
+            if ((b < '0' || b > '9') && b != '.' && b != '-' && b != '+' && b != 'e' && b != 'E') {
+                throw new NumberFormatException("Invalid character in float payload");
+            }
+        }
+        double value = Double.parseDouble(new String(payload, US_ASCII));
+        if (Double.isInfinite(value)) {
+            throw new NumberFormatException("Float payload out of range");
+        }
+        return value;
+    }
+
+    /**
+     * Parses plain decimals with up to 15 digits and no exponent. Both the
+     * digits and the power of ten are exact doubles then, so a single division
+     * rounds correctly. Returns NaN for anything else.
+     */
+    private static double parseSimpleDouble(byte[] payload) {
+        int length = payload.length;
+        boolean negative = length > 0 && payload[0] == '-';
+        int i = negative || (length > 0 && payload[0] == '+') ? 1 : 0;
+
+        long digits = 0;
+        int count = 0;
+        int fractionDigits = -1;
+        for (; i < length; i++) {
+            byte b = payload[i];
+            if (b >= '0' && b <= '9') {
+                if (++count > 15) {
+                    return Double.NaN;
+                }
+                digits = digits * 10 + (b - '0');
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        double value = fractionDigits > 0 ? digits / POWERS_OF_TEN[fractionDigits] : digits;
+        return negative ? -value : value;
+    }
+
+    static boolean parseBoolean(byte[] payload) {
+        if (Arrays.equals(payload, PayloadEncoder.TRUE)) {
+            return true;
+        } else if (Arrays.equals(payload, PayloadEncoder.FALSE)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Boolean payload must be either true or false");
+    }
+
+    /**
+     * Parses a color of three comma separated components and returns them
+     * packed like the values the property tracks for its publish policy.
+     */
+    static long parseColor(byte[] payload, int maxFirst, int maxOthers) {
+        long packed = 0;
+        int i = 0;
+        for (int component = 0; component < 3; component++) {
+            int max = component == 0 ? maxFirst : maxOthers;
+            int start = i;
+            int value = 0;
+            for (; i < payload.length && payload[i] != ','; i++) {
+                int digit = payload[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Invalid character in color payload");
+                }
+                value = value * 10 + digit;
+                if (value > max) {
+                    throw new IllegalArgumentException("Color component out of range");
+                }
+            }
+            if (i == start) {
+                throw new NumberFormatException("Color payload with an empty component");
+            }
+            if (component < 2) {
+                if (i == payload.length) {
+                    throw new NumberFormatException("Color payload needs three components");
+                }
+                i++;
+            }
+            packed = packed << 16 | value;
+        }
+        if (i != payload.length) {
+            throw new NumberFormatException("Color payload has more than three components");
+        }
+        return packed;
+    }
+
+    /**
+     * Checks that the payload is well-formed UTF-8 as required for strings.
+     */
+    static void requireUtf8(byte[] payload) {
+        int i = 0;
+        while (i < payload.length) {
+            int b = payload[i++] & 0xff;
+            if (b < 0x80) {
+                continue;
+            }
+
+            int continuations;
+            int min;
+            int codePoint;
+            if (b >= 0xc2 && b <= 0xdf) {
+                continuations = 1;
+                min = 0x80;
+                codePoint = b & 0x1f;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                continuations = 2;
+                min = 0x800;
+                codePoint = b & 0x0f;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                continuations = 3;
+                min = 0x10000;
+                codePoint = b & 0x07;
+            } else {
+                throw new IllegalArgumentException("Payload is not valid UTF-8");
+            }
+
+            for (int c = 0; c < continuations; c++) {
+                if (i == payload.length || (payload[i] & 0xc0) != 0x80) {
+                    throw new IllegalArgumentException("Payload is not valid UTF-8");
+                }
+                codePoint = codePoint << 6 | (payload[i++] & 0x3f);
+            }
+            if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                throw new IllegalArgumentException("Payload is not valid UTF-8");
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package io.github.dschanoeh.homie_java;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Encodes property values into MQTT payloads without going through
+ * {@code String.format} or intermediate Strings. Each thread uses its own
+ * encoder with reusable scratch buffers; the only array the encoder allocates
+ * per value is the payload. It is published in a {@link SharedPayloadMessage},
+ * so Paho doesn't copy it again.
+ * <p>
+ * The output is identical to {@code String.valueOf} and {@code String.format}
+ * ("%d", "%.Nf") as used before, except that the decimal separator is always a
+ * dot, as required by the homie convention, regardless of the default locale.
+ */
+final class PayloadEncoder {
+
+    static final byte[] TRUE = "true".getBytes(US_ASCII);
+    static final byte[] FALSE = "false".getBytes(US_ASCII);
+
+    private static final ThreadLocal<PayloadEncoder> ENCODERS = ThreadLocal.withInitial(PayloadEncoder::new);
+
+    private final StringBuilder text = new StringBuilder(32);
+    private char[] digits = new char[32];
+    private byte[] buffer = new byte[32];
+    private int length;
+
+    private PayloadEncoder() {
+    }
+
+    /**
+     * Returns the encoder of the calling thread.
+     */
+    static PayloadEncoder get() {
+        return ENCODERS.get();
+    }
+
+    static byte[] encode(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    /**
+     * Returns a payload array for the slice. The array itself is used if the
+     * slice covers all of it, only partial slices are copied.
+     */
+    static byte[] wrap(byte[] payload, int offset, int length) {
+        if (offset == 0 && length == payload.length) {
+            return payload;
+        }
+        if (offset < 0 || length < 0 || offset > payload.length - length) {
+            throw new IndexOutOfBoundsException("Slice [" + offset + ", " + (offset + length) + ") out of bounds for length " + payload.length);
+        }
+        return Arrays.copyOfRange(payload, offset, offset + length);
+    }
+
+    /**
+     * Returns a payload array for the remaining bytes of the buffer and
+     * advances its position. The backing array is used if the remaining bytes
+     * cover all of it, otherwise they are copied.
+     */
+    static byte[] wrap(ByteBuffer payload) {
+        byte[] bytes;
+        if (payload.hasArray() && payload.arrayOffset() + payload.position() == 0
+                && payload.remaining() == payload.array().length) {
+            bytes = payload.array();
+            payload.position(payload.limit());
+        } else {
+            bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+        }
+        return bytes;
+    }
+
+    byte[] encode(long value) {
+        length = 0;
+        appendLong(value);
+        return toBytes();
+    }
+
+    /**
+     * Encodes the value like {@link Double#toString(double)}.
+     */
+    byte[] encode(double value) {
+        length = 0;
+        text.setLength(0);
+        text.append(value);
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+        return toBytes();
+    }
+
+    /**
+     * Encodes the value with a fixed number of fraction digits like
+     * {@code String.format("%.<precision>f", value)}: the shortest decimal
+     * representation of the value is rounded half up.
+     */
+    byte[] encode(double value, int precision) {
+        length = 0;
+        boolean negative = Double.compare(value, 0.0) < 0;
+        text.setLength(0);
+        text.append(Math.abs(value));
+
+        /* split the shortest representation into its significant digits and a decimal exponent */
+        int nDigits = 0;
+        int decExp = 0;
+        boolean fraction = false;
+        if (digits.length < text.length()) {
+            digits = new char[text.length()];
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                fraction = true;
+            } else if (c == 'E') {
+                decExp += parseExponent(i + 1);
+                break;
+            } else if (nDigits == 0 && c == '0') {
+                if (fraction) {
+                    decExp--;
+                }
+            } else {
+                digits[nDigits++] = c;
+                if (!fraction) {
+                    decExp++;
+                }
+            }
+        }
+
+        /* round half up to the requested precision */
+        int keep = decExp + precision;
+        if (keep < 0 || nDigits == 0) {
+            nDigits = 0;
+        } else if (keep < nDigits) {
+            boolean roundUp = digits[keep] >= '5';
+            nDigits = keep;
+            if (roundUp) {
+                int i = keep - 1;
+                while (i >= 0 && digits[i] == '9') {
+                    i--;
+                }
+                if (i < 0) {
+                    /* carry out of the highest digit, e.g. 9.96 -> 10.0 */
+                    digits[0] = '1';
+                    nDigits = 1;
+                    decExp++;
+                } else {
+                    digits[i]++;
+                    nDigits = i + 1;
+                }
+            }
+        }
+
+        ensureCapacity(3 + Math.max(decExp, 1) + precision);
+        if (negative) {
+            buffer[length++] = '-';
+        }
+        if (decExp <= 0) {
+            buffer[length++] = '0';
+        } else {
+            for (int i = 0; i < decExp; i++) {
+                buffer[length++] = (byte) (i < nDigits ? digits[i] : '0');
+            }
+        }
+        if (precision > 0) {
+            buffer[length++] = '.';
+            for (int i = decExp; i < decExp + precision; i++) {
+                buffer[length++] = (byte) (i >= 0 && i < nDigits ? digits[i] : '0');
+            }
+        }
+        return toBytes();
+    }
+
+    /**
+     * Encodes a color like {@code String.format("%d,%d,%d", a, b, c)}.
+     */
+    byte[] encodeColor(int a, int b, int c) {
+        length = 0;
+        appendLong(a);
+        appendByte(',');
+        appendLong(b);
+        appendByte(',');
+        appendLong(c);
+        return toBytes();
+    }
+
+    private int parseExponent(int start) {
+        int exponent = 0;
+        boolean negative = text.charAt(start) == '-';
+        for (int i = negative ? start + 1 : start; i < text.length(); i++) {
+            exponent = exponent * 10 + (text.charAt(i) - '0');
+        }
+        return negative ? -exponent : exponent;
+    }
+
+    private void appendLong(long value) {
+        ensureCapacity(20);
+        /* work on the negative value, so that Long.MIN_VALUE needs no special case */
+        if (value < 0) {
+            buffer[length++] = '-';
+        } else {
+            value = -value;
+        }
+
+        int start = length;
+        do {
+            long q = value / 10;
+            buffer[length++] = (byte) ('0' + (q * 10 - value));
+            value = q;
+        } while (value != 0);
+
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte t = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = t;
+        }
+    }
+
+    private void appendByte(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+    private byte[] toBytes() {
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -6,181 +6,691 @@ import lombok.Setter;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class Property {
 
-    @Getter @Setter @NonNull private String name = "";
+    private static final Logger LOGGER = Logger.getLogger(Property.class.getName());
+    private static final CompletionStage<Void> SUPPRESSED = CompletableFuture.completedFuture(null);
+
+    /* attributes are read by the state machine when it advertises the property */
+    @Getter @NonNull private volatile String name = "";
     @Getter private final String id;
-    @Getter private boolean settable = false;
+    @Getter private volatile boolean settable = false;
     @Getter @Setter private boolean retained = true;
-    @Getter @Setter private String unit = "";
-    @Getter private String format = "";
-    @Getter private DataType dataType = DataType.STRING;
+    @Getter private volatile String unit = "";
+    @Getter private volatile String format = "";
+    @Getter private volatile DataType dataType = DataType.STRING;
+    @Getter @Setter @NonNull private PublishPolicy publishPolicy = PublishPolicy.ALWAYS;
+    @Getter private double maxPublishRate = 0;
     private final Homie homie;
     private final Node node;
-    private PropertySetCallback callback;
-    private List<String> enumValues;
+    private final CachedTopic topic;
+    private SetHandler setHandler;
+    private EnumFormat enumFormat;
+    /* from:to range of numeric properties, taken from the format */
+    private double rangeMin = Double.NEGATIVE_INFINITY;
+    private double rangeMax = Double.POSITIVE_INFINITY;
+    private volatile boolean advertised = false;
+
+    /* last published value, numbers are kept as raw bits and strings by reference */
+    private boolean hasLast;
+    private long lastBits;
+    private String lastString;
+    private long lastPublishedAt;
+
+    /* rate limiting, values arriving before the next slot replace each other */
+    private long minPublishIntervalNanos;
+    private boolean sentBefore;
+    private long lastSentAt;
+    private boolean slotScheduled;
+    private byte[] conflated;
+    private CompletableFuture<Void> conflatedResult;
+
+    /* publishes conflated values that may block in a full outbox, see slotDue */
+    private static final class PublisherHolder {
+        static final Executor INSTANCE = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "homie-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
     public enum DataType {
         INTEGER, FLOAT, BOOLEAN, STRING, ENUM, COLOR_RGB, COLOR_HSV
     }
 
+    /**
+     * Turns an inbound set message into a call of the user's callback.
+     */
+    private interface SetHandler {
+        void handle(MqttMessage message);
+    }
+
+    /* created with the first set message that is dispatched to an executor */
+    private SerialExecutor setExecutor;
+    private final AtomicLong droppedSetMessages = new AtomicLong();
+    private final AtomicLong rejectedSetMessages = new AtomicLong();
+
     private final IMqttMessageListener setMessageListener = new IMqttMessageListener() {
         @Override
         public void messageArrived(String topic, MqttMessage message) {
-            callback.performSet(Property.this, message.toString());
+            long receivedAt = System.nanoTime();
+            homie.setMessageReceived();
+            SerialExecutor executor = getSetExecutor();
+            if (executor == null) {
+                handleSet(message, receivedAt);
+            } else if (executor.execute(() -> handleSet(message, receivedAt))) {
+                droppedSetMessages.incrementAndGet();
+                homie.setMessageDropped();
+                LOGGER.log(Level.WARNING, () -> String.format("Set queue of property '%s' is full, dropped the oldest message", id));
+            }
         }
     };
 
+    private synchronized SerialExecutor getSetExecutor() {
+        if (setExecutor == null) {
+            Executor executor = homie.getConfiguration().getSetCallbackExecutor();
+            if (executor != null) {
+                setExecutor = new SerialExecutor(executor, homie.getConfiguration().getSetCallbackQueueCapacity());
+            }
+        }
+        return setExecutor;
+    }
+
+    private void handleSet(MqttMessage message, long receivedAt) {
+        try {
+            setHandler.handle(message);
+            homie.setMessageHandled(receivedAt);
+        } catch (IllegalArgumentException e) {
+            rejectedSetMessages.incrementAndGet();
+            homie.setMessageRejected();
+            LOGGER.log(Level.WARNING, e, () -> String.format("Ignoring invalid set message for property '%s'", id));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, e, () -> String.format("Set callback of property '%s' failed", id));
+        }
+    }
+
+    /**
+     * Number of set messages that were dropped because the set callback
+     * couldn't keep up.
+     */
+    public long getDroppedSetMessages() {
+        return droppedSetMessages.get();
+    }
+
+    /**
+     * Number of set messages that were rejected because the value was invalid
+     * or outside of the format.
+     */
+    public long getRejectedSetMessages() {
+        return rejectedSetMessages.get();
+    }
+
     public Property(Homie homie, Node node, String id) {
         this.id = id;
         this.node = node;
         this.homie = homie;
+        this.topic = new CachedTopic(homie, node.getId() + "/" + id);
     }
 
     public void makeUnsettable() {
         this.settable = false;
-        homie.deregisterListener(node.getId() + "/" + this.getId() + "/$settable");
+        homie.deregisterListener(node.getId() + "/" + this.getId() + "/set");
+        readvertise();
     }
 
     public void makeSettable(PropertySetCallback callback) {
+        makeSettable(message -> callback.performSet(this, message.toString()));
+    }
+
+    /**
+     * Makes an INTEGER property settable. The callback receives the parsed
+     * value, invalid payloads and values outside the format's range are
+     * rejected.
+     */
+    public void makeSettableLong(LongPropertySetCallback callback) {
+        requireDataType(DataType.INTEGER);
+        makeSettable(message -> {
+            long value = PayloadDecoder.parseLong(message.getPayload());
+            requireInRange(value);
+            callback.performSet(this, value);
+        });
+    }
+
+    /**
+     * Makes a FLOAT property settable. The callback receives the parsed
+     * value, invalid payloads and values outside the format's range are
+     * rejected.
+     */
+    public void makeSettableDouble(DoublePropertySetCallback callback) {
+        requireDataType(DataType.FLOAT);
+        makeSettable(message -> {
+            double value = PayloadDecoder.parseDouble(message.getPayload());
+            requireInRange(value);
+            callback.performSet(this, value);
+        });
+    }
+
+    /**
+     * Makes a BOOLEAN property settable. The callback receives the parsed
+     * value, invalid payloads are ignored.
+     */
+    public void makeSettableBoolean(BooleanPropertySetCallback callback) {
+        requireDataType(DataType.BOOLEAN);
+        makeSettable(message -> callback.performSet(this, PayloadDecoder.parseBoolean(message.getPayload())));
+    }
+
+    /**
+     * Makes an ENUM property settable. The callback receives the index of the
+     * value in the format, values that aren't part of it are rejected.
+     */
+    public void makeSettableEnum(EnumPropertySetCallback callback) {
+        requireDataType(DataType.ENUM);
+        EnumFormat enumFormat = requireEnumFormat();
+        makeSettable(message -> {
+            int ordinal = enumFormat.ordinal(message.getPayload());
+            if(ordinal < 0) {
+                throw new IllegalArgumentException("Value isn't included in the list of enum values");
+            }
+            callback.performSet(this, ordinal);
+        });
+    }
+
+    /**
+     * Makes a COLOR_RGB or COLOR_HSV property settable. The callback receives
+     * the three components, colors outside of [0:255] for rgb or
+     * [0:360][0:100][0:100] for hsv are rejected.
+     */
+    public void makeSettableColor(ColorPropertySetCallback callback) {
+        if(this.dataType != DataType.COLOR_RGB && this.dataType != DataType.COLOR_HSV) {
+            throw new UnsupportedOperationException("Property type is " + this.dataType.toString() + " but a color type is required");
+        }
+        boolean hsv = this.dataType == DataType.COLOR_HSV;
+        makeSettable(message -> {
+            long color = hsv ? PayloadDecoder.parseColor(message.getPayload(), 360, 100)
+                    : PayloadDecoder.parseColor(message.getPayload(), 255, 255);
+            callback.performSet(this, (int) (color >>> 32), (int) (color >>> 16) & 0xffff, (int) color & 0xffff);
+        });
+    }
+
+    private void makeSettable(SetHandler handler) {
         this.settable = true;
-        this.callback = callback;
+        this.setHandler = handler;
         homie.registerListener(node.getId() + "/" + this.getId() + "/set", setMessageListener);
+        readvertise();
+    }
+
+    public void setName(@NonNull String name) {
+        this.name = name;
+        readvertise();
+    }
+
+    public void setUnit(String unit) {
+        this.unit = unit;
+        readvertise();
+    }
+
+    /**
+     * Publishes the attributes again if they changed after the property was
+     * advertised.
+     */
+    private void readvertise() {
+        if (advertised) {
+            advertised = false;
+            homie.requestAdvertisement();
+        }
+    }
+
+    boolean isAdvertised() {
+        return advertised;
+    }
+
+    private void requireInRange(double value) {
+        if(value < rangeMin || value > rangeMax) {
+            throw new IllegalArgumentException("Value is outside of the range " + format);
+        }
+    }
+
+    private EnumFormat requireEnumFormat() {
+        if(this.enumFormat == null) {
+            throw new UnsupportedOperationException("Enum property needs a list of enum values as format");
+        }
+        return this.enumFormat;
+    }
+
+    private void requireDataType(DataType required) {
+        if(this.dataType != required) {
+            throw new UnsupportedOperationException("Property type is " + this.dataType.toString() + " but " + required.toString() + " is required");
+        }
     }
 
     public void setFormat(String format) {
         if(this.dataType == DataType.COLOR_HSV || this.dataType == DataType.COLOR_RGB) {
             throw new UnsupportedOperationException("Cannot modify the format on properties of the color data type");
         } else if(this.dataType == DataType.ENUM) {
-            String[] values = format.split(",");
-            enumValues = Arrays.asList(values);
+            enumFormat = new EnumFormat(format);
             this.format = format;
         } else {
+            updateRange(format);
             this.format = format;
         }
+        readvertise();
+    }
+
+    /**
+     * Takes the from:to range of numeric properties from the format. Either
+     * bound may be left out.
+     */
+    private void updateRange(String format) {
+        double min = Double.NEGATIVE_INFINITY;
+        double max = Double.POSITIVE_INFINITY;
+        if((dataType == DataType.INTEGER || dataType == DataType.FLOAT) && format != null && !format.isEmpty()) {
+            int colon = format.indexOf(':');
+            if(colon < 0) {
+                throw new IllegalArgumentException("Format of numeric properties must be a range like from:to");
+            }
+            String from = format.substring(0, colon);
+            String to = format.substring(colon + 1);
+            min = from.isEmpty() ? min : Double.parseDouble(from);
+            max = to.isEmpty() ? max : Double.parseDouble(to);
+            if(min > max) {
+                throw new IllegalArgumentException("Range of the format must not end before it starts");
+            }
+        }
+        rangeMin = min;
+        rangeMax = max;
     }
 
     public void setDataType(DataType dataType) {
         this.dataType = dataType;
+        forgetLast();
+        try {
+            updateRange(this.format);
+        } catch (IllegalArgumentException e) {
+            /* the format was meant for the previous type, treat the range as unbounded */
+            rangeMin = Double.NEGATIVE_INFINITY;
+            rangeMax = Double.POSITIVE_INFINITY;
+        }
 
         if(dataType == DataType.COLOR_RGB) {
             this.format = "rgb";
         } else if(dataType == DataType.COLOR_HSV) {
             this.format = "hsv";
+        } else if(dataType == DataType.ENUM && !this.format.isEmpty()) {
+            enumFormat = new EnumFormat(this.format);
         }
+        readvertise();
     }
 
-    public void send(String value) {
+    public CompletionStage<Void> send(String value) {
         if("".equals(value) && this.dataType != DataType.STRING) {
             throw new UnsupportedOperationException("An empty string is not a valid value for anything but STRING type");
         }
 
         if(this.dataType == DataType.STRING) {
-            homie.publish(buildPath(""), value, this.isRetained());
+            if(isSuppressed(0, value)) {
+                return SUPPRESSED;
+            }
+            return publish(value.getBytes(UTF_8));
         } else if(this.dataType == DataType.ENUM) {
-            if(this.enumValues == null || this.enumValues.isEmpty()) {
-                throw new UnsupportedOperationException("Trying to send enum value but no list of enum values was provided as format");
-            } else if(this.enumValues.stream().anyMatch(s -> s.equals(value))) {
-                homie.publish(buildPath(""), value, this.isRetained());
-            } else {
+            int ordinal = requireEnumFormat().ordinal(value);
+            if(ordinal < 0) {
                 throw new UnsupportedOperationException("Trying to send an enum value which isn't included in the list of provided values");
             }
+            return sendEnum(ordinal);
         } else {
             throw new UnsupportedOperationException("Trying to send String value but property type is " + this.dataType.toString());
         }
     }
 
-    public void send(Boolean value) {
+    /**
+     * Publishes the value at the given index of the enum format. Its payload
+     * was encoded when the format was set.
+     */
+    public CompletionStage<Void> sendOrdinal(int ordinal) {
+        requireDataType(DataType.ENUM);
+        if(ordinal < 0 || ordinal >= requireEnumFormat().size()) {
+            throw new IllegalArgumentException("Enum ordinal " + ordinal + " is not within [0:" + (enumFormat.size() - 1) + "]");
+        }
+        return sendEnum(ordinal);
+    }
+
+    private CompletionStage<Void> sendEnum(int ordinal) {
+        if(isSuppressed(ordinal, null)) {
+            return SUPPRESSED;
+        }
+        return publish(enumFormat.getPayload(ordinal));
+    }
+
+    public CompletionStage<Void> send(Boolean value) {
+        return send(value.booleanValue());
+    }
+
+    public CompletionStage<Void> send(boolean value) {
         if(this.dataType != DataType.BOOLEAN) {
             throw new UnsupportedOperationException("Trying to send Boolean value but property type is " + this.dataType.toString());
         }
 
-        String s = String.valueOf(value).toLowerCase();
-        homie.publish(buildPath(""), s, this.isRetained());
+        if(isSuppressed(value ? 1 : 0, null)) {
+            return SUPPRESSED;
+        }
+        return publish(PayloadEncoder.encode(value));
+    }
+
+    public CompletionStage<Void> send(Long value) {
+        return send(value.longValue());
     }
 
-    public void send(Long value) {
+    public CompletionStage<Void> send(long value) {
         if(this.dataType != DataType.INTEGER) {
             throw new UnsupportedOperationException("Trying to send Long value but property type is " + this.dataType.toString());
         }
 
-        String s = String.valueOf(value);
-        homie.publish(buildPath(""), s, this.isRetained());
+        if(isSuppressed(value, null)) {
+            return SUPPRESSED;
+        }
+        return publish(PayloadEncoder.get().encode(value));
     }
 
-    public void send(Integer value) {
-        if(this.dataType != DataType.INTEGER) {
-            throw new UnsupportedOperationException("Trying to send Integer value but property type is " + this.dataType.toString());
-        }
+    public CompletionStage<Void> send(Integer value) {
+        return send(value.longValue());
+    }
 
-        String s = String.valueOf(value);
-        homie.publish(buildPath(""), s, this.isRetained());
+    public CompletionStage<Void> send(int value) {
+        return send((long) value);
     }
 
-    public void send(Double value) {
+    public CompletionStage<Void> send(Double value) {
+        return send(value.doubleValue());
+    }
+
+    public CompletionStage<Void> send(double value) {
         if(this.dataType != DataType.FLOAT) {
             throw new UnsupportedOperationException("Trying to send Float value but property type is " + this.dataType.toString());
         }
-        if(value.isInfinite() || value.isNaN()) {
+        if(Double.isInfinite(value) || Double.isNaN(value)) {
             throw new IllegalArgumentException("NaN and infinity values are not supported");
         }
 
-        String s = String.valueOf(value);
-        homie.publish(buildPath(""), s, this.isRetained());
+        if(isSuppressed(Double.doubleToLongBits(value), null)) {
+            return SUPPRESSED;
+        }
+        return publish(PayloadEncoder.get().encode(value));
     }
 
-    public void send(Double value, Integer precision) {
+    public CompletionStage<Void> send(double value, int precision) {
         if(this.dataType != DataType.FLOAT) {
             throw new UnsupportedOperationException("Trying to send Float value but property type is " + this.dataType.toString());
         }
-        if(value.isInfinite() || value.isNaN()) {
+        if(Double.isInfinite(value) || Double.isNaN(value)) {
             throw new IllegalArgumentException("NaN and infinity values are not supported");
         }
         if(precision < 0) {
             throw new IllegalArgumentException("Precision cannot be negative");
         }
 
-        String s = String.format("%." + precision + "f", value);
-        homie.publish(buildPath(""), s, this.isRetained());
+        /* compare the rounded value, values that look the same when published are unchanged */
+        byte[] payload = PayloadEncoder.get().encode(value, precision);
+        if(isSuppressed(Double.doubleToLongBits(PayloadDecoder.parseDouble(payload)), null)) {
+            return SUPPRESSED;
+        }
+        return publish(payload);
     }
 
-    public void send(Integer a, Integer b, Integer c) {
+    public CompletionStage<Void> send(int a, int b, int c) {
         if(this.dataType == DataType.COLOR_HSV) {
             if (a < 0 || a > 360 ||
                 b < 0 || b > 100 ||
                 c < 0 || c > 100) {
                 throw new IllegalArgumentException("Provided color values are not within [0:360][0:100][0:100]");
             }
-            String s = String.format("%d,%d,%d", a, b, c);
-            homie.publish(buildPath(""), s, this.isRetained());
+            if(isSuppressed(packColor(a, b, c), null)) {
+                return SUPPRESSED;
+            }
+            return publish(PayloadEncoder.get().encodeColor(a, b, c));
         } else if(this.dataType == DataType.COLOR_RGB) {
             if (a < 0 || a > 255 ||
                 b < 0 || b > 255 ||
                 c < 0 || c > 255) {
                 throw new IllegalArgumentException("Provided color values are not within [0:255][0:255][0:255]");
             }
-            String s = String.format("%d,%d,%d", a, b, c);
-            homie.publish(buildPath(""), s, this.isRetained());
+            if(isSuppressed(packColor(a, b, c), null)) {
+                return SUPPRESSED;
+            }
+            return publish(PayloadEncoder.get().encodeColor(a, b, c));
         } else {
             throw new UnsupportedOperationException("Trying to send color value but property type is " + this.dataType.toString());
         }
     }
 
-    protected void onConnect() {
+    /**
+     * Publishes an already encoded value. The payload is validated against the
+     * data type and handed to the MQTT client without copying, so it must not
+     * be modified afterwards.
+     *
+     * @throws IllegalArgumentException if the payload isn't a valid value of the data type
+     */
+    public CompletionStage<Void> send(byte[] payload) {
+        return sendEncoded(payload);
+    }
+
+    /**
+     * Publishes the slice of an already encoded value. Only slices that don't
+     * cover the whole array are copied.
+     *
+     * @throws IllegalArgumentException if the payload isn't a valid value of the data type
+     */
+    public CompletionStage<Void> send(byte[] payload, int offset, int length) {
+        return sendEncoded(PayloadEncoder.wrap(payload, offset, length));
+    }
+
+    /**
+     * Publishes the remaining bytes of the buffer as an already encoded value
+     * and advances its position. The backing array is used without copying
+     * if the remaining bytes cover all of it.
+     *
+     * @throws IllegalArgumentException if the payload isn't a valid value of the data type
+     */
+    public CompletionStage<Void> send(ByteBuffer payload) {
+        return sendEncoded(PayloadEncoder.wrap(payload));
+    }
+
+    private CompletionStage<Void> sendEncoded(byte[] payload) {
+        long bits = 0;
+        String string = null;
+        switch(this.dataType) {
+            case INTEGER:
+                bits = PayloadDecoder.parseLong(payload);
+                break;
+            case FLOAT:
+                bits = Double.doubleToLongBits(PayloadDecoder.parseDouble(payload));
+                break;
+            case BOOLEAN:
+                bits = PayloadDecoder.parseBoolean(payload) ? 1 : 0;
+                break;
+            case COLOR_HSV:
+                bits = PayloadDecoder.parseColor(payload, 360, 100);
+                break;
+            case COLOR_RGB:
+                bits = PayloadDecoder.parseColor(payload, 255, 255);
+                break;
+            case ENUM:
+                bits = requireEnumFormat().ordinal(payload);
+                if(bits < 0) {
+                    throw new IllegalArgumentException("Trying to send an enum value which isn't included in the list of provided values");
+                }
+                break;
+            default:
+                PayloadDecoder.requireUtf8(payload);
+                break;
+        }
+
+        /* strings are only needed to compare against the last value */
+        if(this.dataType == DataType.STRING && publishPolicy != PublishPolicy.ALWAYS) {
+            string = new String(payload, UTF_8);
+        }
+        if(isSuppressed(bits, string)) {
+            return SUPPRESSED;
+        }
+        return publish(payload);
+    }
+
+    /**
+     * Limits how often values are published. Values sent faster are conflated:
+     * only the latest one is published once the next slot is due and the
+     * results of the values it replaced complete along with it.
+     *
+     * @param publishesPerSecond the maximum rate or 0 to publish every value immediately
+     */
+    public synchronized void setMaxPublishRate(double publishesPerSecond) {
+        if(!(publishesPerSecond >= 0) || Double.isInfinite(publishesPerSecond)) {
+            throw new IllegalArgumentException("Publish rate must be a finite value >= 0");
+        }
+        this.maxPublishRate = publishesPerSecond;
+        this.minPublishIntervalNanos = publishesPerSecond == 0 ? 0 : (long) (1_000_000_000L / publishesPerSecond);
+    }
+
+    private CompletionStage<Void> publish(byte[] payload) {
+        synchronized(this) {
+            if(minPublishIntervalNanos > 0) {
+                long now = System.nanoTime();
+                long nextSlot = lastSentAt + minPublishIntervalNanos;
+                if(slotScheduled || (sentBefore && now - nextSlot < 0)) {
+                    conflated = payload;
+                    if(conflatedResult == null) {
+                        conflatedResult = new CompletableFuture<>();
+                    }
+                    if(!slotScheduled) {
+                        slotScheduled = true;
+                        homie.getTimerWheel().schedule(this::slotDue, nextSlot - now, TimeUnit.NANOSECONDS);
+                    }
+                    return conflatedResult;
+                }
+                sentBefore = true;
+                lastSentAt = now;
+            }
+        }
+        return track(homie.publishValue(topic.get(), payload, this.isRetained()));
+    }
+
+    /**
+     * Runs on the timer thread, which must not block. With the BLOCK overflow
+     * policy a full outbox would block the publish, so it is handed off. New
+     * values keep being conflated until it ran.
+     */
+    private void slotDue() {
+        if(homie.getConfiguration().getOutboxOverflowPolicy() == Configuration.OutboxOverflowPolicy.BLOCK) {
+            PublisherHolder.INSTANCE.execute(this::publishConflated);
+        } else {
+            publishConflated();
+        }
+    }
+
+    private void publishConflated() {
+        byte[] payload;
+        CompletableFuture<Void> result;
+        synchronized(this) {
+            payload = conflated;
+            result = conflatedResult;
+            conflated = null;
+            conflatedResult = null;
+            slotScheduled = false;
+            lastSentAt = System.nanoTime();
+        }
+        track(homie.publishValue(topic.get(), payload, this.isRetained())).whenComplete((v, e) -> {
+            if(e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(null);
+            }
+        });
+    }
+
+    static long packColor(int a, int b, int c) {
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    /**
+     * Checks the value against the publish policy and remembers it as the
+     * last published value unless it is suppressed.
+     */
+    private synchronized boolean isSuppressed(long bits, String string) {
+        if(publishPolicy == PublishPolicy.ALWAYS) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if(hasLast && !publishPolicy.isSilenceExceeded(now - lastPublishedAt)) {
+            boolean unchanged = string != null ? string.equals(lastString) : bits == lastBits;
+            if(unchanged && publishPolicy.isChangeOnly()) {
+                return true;
+            }
+            if(!unchanged && isWithinDeadband(bits)) {
+                return true;
+            }
+        }
+
+        hasLast = true;
+        lastBits = bits;
+        lastString = string;
+        lastPublishedAt = now;
+        return false;
+    }
+
+    private boolean isWithinDeadband(long bits) {
+        if(dataType == DataType.INTEGER) {
+            return publishPolicy.isWithinDeadband(lastBits, bits);
+        } else if(dataType == DataType.FLOAT) {
+            return publishPolicy.isWithinDeadband(Double.longBitsToDouble(lastBits), Double.longBitsToDouble(bits));
+        }
+        return false;
+    }
+
+    private synchronized void forgetLast() {
+        hasLast = false;
+        lastString = null;
+    }
+
+    /**
+     * Forgets the last value if publishing failed so that the next value
+     * isn't suppressed against something the broker never received.
+     */
+    private CompletionStage<Void> track(CompletionStage<Void> result) {
+        if(publishPolicy != PublishPolicy.ALWAYS) {
+            result.whenComplete((v, e) -> {
+                if(e != null) {
+                    forgetLast();
+                }
+            });
+        }
+        return result;
+    }
+
+    protected void onConnect(List<CompletionStage<Void>> pending) {
+        advertised = true;
         if (!"".equals(unit)) {
-            homie.publish(buildPath("/$unit"), unit, true);
+            pending.add(homie.publishAttribute(buildPath("/$unit"), unit));
         }
 
-        homie.publish(buildPath("/$name"), this.getName(), true);
-        homie.publish(buildPath("/$settable"), Boolean.toString(settable), true);
+        pending.add(homie.publishAttribute(buildPath("/$name"), this.getName()));
+        pending.add(homie.publishAttribute(buildPath("/$settable"), Boolean.toString(settable)));
 
-        homie.publish(buildPath("/$datatype"), dataType.toString().toLowerCase(), true);
+        pending.add(homie.publishAttribute(buildPath("/$datatype"), dataType.toString().toLowerCase()));
 
         if(null != this.format && !this.format.equals("")) {
-            homie.publish(buildPath("/$format"), this.format, true);
+            pending.add(homie.publishAttribute(buildPath("/$format"), this.format));
         }
     }
 
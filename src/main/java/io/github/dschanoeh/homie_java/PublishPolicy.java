@@ -0,0 +1,81 @@
+package io.github.dschanoeh.homie_java;
+
+import java.time.Duration;
+
+/**
+ * Decides which values a property actually publishes. Values that are
+ * suppressed are not sent to the broker at all.
+ */
+public final class PublishPolicy {
+
+    /**
+     * Publishes every value, this is the default for new properties.
+     */
+    public static final PublishPolicy ALWAYS = new PublishPolicy(false, 0, false, 0);
+
+    private final boolean changeOnly;
+    private final double deadband;
+    private final boolean relative;
+    private final long maxSilenceNanos;
+
+    private PublishPolicy(boolean changeOnly, double deadband, boolean relative, long maxSilenceNanos) {
+        this.changeOnly = changeOnly;
+        this.deadband = deadband;
+        this.relative = relative;
+        this.maxSilenceNanos = maxSilenceNanos;
+    }
+
+    /**
+     * Suppresses values that equal the last published one.
+     */
+    public static PublishPolicy onChange() {
+        return new PublishPolicy(true, 0, false, 0);
+    }
+
+    /**
+     * Suppresses INTEGER and FLOAT values that differ less than the given
+     * amount from the last published one. Other types only publish changes.
+     */
+    public static PublishPolicy absoluteDeadband(double deadband) {
+        if (!(deadband >= 0) || Double.isInfinite(deadband)) {
+            throw new IllegalArgumentException("Deadband must be a finite value >= 0");
+        }
+        return new PublishPolicy(true, deadband, false, 0);
+    }
+
+    /**
+     * Suppresses INTEGER and FLOAT values that differ less than the given
+     * fraction of the last published one (e.g. 0.01 for 1%). Other types
+     * only publish changes.
+     */
+    public static PublishPolicy relativeDeadband(double fraction) {
+        if (!(fraction >= 0) || Double.isInfinite(fraction)) {
+            throw new IllegalArgumentException("Deadband must be a finite value >= 0");
+        }
+        return new PublishPolicy(true, fraction, true, 0);
+    }
+
+    /**
+     * Returns a copy of this policy which publishes a value regardless of
+     * the policy once nothing was published for the given duration.
+     */
+    public PublishPolicy withMaxSilence(Duration maxSilence) {
+        if (maxSilence.isNegative() || maxSilence.isZero()) {
+            throw new IllegalArgumentException("Maximum silence must be positive");
+        }
+        return new PublishPolicy(changeOnly, deadband, relative, maxSilence.toNanos());
+    }
+
+    boolean isChangeOnly() {
+        return changeOnly;
+    }
+
+    boolean isSilenceExceeded(long silentNanos) {
+        return maxSilenceNanos > 0 && silentNanos >= maxSilenceNanos;
+    }
+
+    boolean isWithinDeadband(double last, double value) {
+        double delta = Math.abs(value - last);
+        return relative ? delta < deadband * Math.abs(last) : delta < deadband;
+    }
+}
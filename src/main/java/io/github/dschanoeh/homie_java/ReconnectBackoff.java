@@ -0,0 +1,44 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.Random;
+
+/**
+ * Computes reconnect delays using exponential backoff with decorrelated
+ * jitter: each delay is drawn from [base, 3 * previous delay] and capped.
+ * Devices that lost their connection at the same time thereby spread their
+ * reconnects instead of hitting the broker in lockstep.
+ */
+final class ReconnectBackoff {
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+    private long previousDelay;
+
+    ReconnectBackoff(long baseDelay, long maxDelay, Random random) {
+        if (baseDelay <= 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("Delays must be positive and the maximum must not be below the base");
+        }
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+        this.previousDelay = baseDelay;
+    }
+
+    /**
+     * Returns the delay before the next attempt.
+     */
+    long nextDelay() {
+        long upper = Math.min(maxDelay, previousDelay * 3);
+        long delay = baseDelay + (long) (random.nextDouble() * (upper - baseDelay));
+        previousDelay = delay;
+        return delay;
+    }
+
+    /**
+     * Starts over with the base delay after a successful connection.
+     */
+    void reset() {
+        previousDelay = baseDelay;
+    }
+}
@@ -0,0 +1,318 @@
+package io.github.dschanoeh.homie_java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only key/value log stored in memory-mapped segment files. Every put
+ * or remove appends a record to the newest segment and an in-memory index
+ * points at the latest value of every key. Once the compaction policy decides
+ * that too much of the log is dead, all live records are rewritten into a
+ * fresh segment and the old segments are deleted.
+ * <p>
+ * Records are written straight into the mapped pages, so they survive a
+ * restart of the JVM. Segments are forced to disk (checkpointed) when they are
+ * full, after a compaction, on {@link #checkpoint()} and on close.
+ */
+class SegmentJournal implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentJournal.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    /* length, type, key length, value length and checksum */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4 + 4;
+
+    private static class Segment {
+        private final long number;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        private Segment(long number, Path path, int size) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final int recordSize;
+
+        private Location(Segment segment, int offset, int length, int recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final CompactionPolicy compactionPolicy;
+    private final List<Segment> segments = new ArrayList<>();
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>();
+    private long totalBytes;
+    private long liveBytes;
+
+    SegmentJournal(Path directory, int segmentSize, CompactionPolicy compactionPolicy) throws IOException {
+        if (segmentSize <= RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("Segment size is too small");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionPolicy = compactionPolicy;
+
+        Files.createDirectories(directory);
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        numbers.sort(null);
+
+        for (Long number : numbers) {
+            Segment segment = new Segment(number, segmentPath(number), 0);
+            segments.add(segment);
+            replay(segment);
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+        }
+    }
+
+    synchronized void put(String key, byte[] value) throws IOException {
+        put(key, value, 0, value.length);
+    }
+
+    synchronized void put(String key, byte[] value, int offset, int length) throws IOException {
+        append(PUT, key, value, offset, length);
+        compactIfNeeded();
+    }
+
+    synchronized void remove(String key) throws IOException {
+        if (index.containsKey(key)) {
+            append(REMOVE, key, null, 0, 0);
+            compactIfNeeded();
+        }
+    }
+
+    synchronized byte[] get(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        byte[] value = new byte[location.length];
+        ByteBuffer reader = location.segment.buffer.duplicate();
+        reader.position(location.offset);
+        reader.get(value);
+        return value;
+    }
+
+    synchronized boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Returns all live keys in the order they were first written.
+     */
+    synchronized List<String> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Removes all records and starts over with a single empty segment.
+     */
+    synchronized void clear() throws IOException {
+        List<Segment> old = new ArrayList<>(segments);
+        index.clear();
+        totalBytes = 0;
+        liveBytes = 0;
+        roll(0);
+        delete(old);
+    }
+
+    /**
+     * Forces all written records to disk.
+     */
+    synchronized void checkpoint() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Rewrites all live records into a fresh segment and deletes the old ones.
+     */
+    synchronized void compact() throws IOException {
+        List<Segment> old = new ArrayList<>(segments);
+        Map<String, byte[]> live = new LinkedHashMap<>();
+        for (String key : index.keySet()) {
+            live.put(key, get(key));
+        }
+
+        index.clear();
+        totalBytes = 0;
+        liveBytes = 0;
+        roll(0);
+        for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+            append(PUT, entry.getKey(), entry.getValue(), 0, entry.getValue().length);
+        }
+        checkpoint();
+        delete(old);
+        LOGGER.log(Level.FINE, () -> String.format("Compacted journal '%s' to %d records", directory, index.size()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        checkpoint();
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (compactionPolicy != null && compactionPolicy.shouldCompact(segments.size(), liveBytes, totalBytes)) {
+            compact();
+        }
+    }
+
+    private void append(byte type, String key, byte[] value, int offset, int length) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Journal key is too long");
+        }
+        int recordSize = RECORD_OVERHEAD + keyBytes.length + length;
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.writePosition + recordSize > segment.buffer.capacity()) {
+            segment.buffer.force();
+            segment = roll(recordSize);
+        }
+
+        int position = segment.writePosition;
+        ByteBuffer writer = segment.buffer.duplicate();
+        writer.position(position + 4);
+        writer.put(type);
+        writer.putShort((short) keyBytes.length);
+        writer.put(keyBytes);
+        writer.putInt(length);
+        int valueOffset = writer.position();
+        if (length > 0) {
+            writer.put(value, offset, length);
+        }
+        writer.putInt(checksum(segment.buffer, position + 4, recordSize - 8));
+        /* the length is written last and marks the record as complete */
+        segment.buffer.putInt(position, recordSize - 4);
+        segment.writePosition = position + recordSize;
+
+        apply(type, key, new Location(segment, valueOffset, length, recordSize));
+    }
+
+    private void apply(byte type, String key, Location location) {
+        totalBytes += location.recordSize;
+        Location previous = type == PUT ? index.put(key, location) : index.remove(key);
+        if (previous != null) {
+            liveBytes -= previous.recordSize;
+        }
+        if (type == PUT) {
+            liveBytes += location.recordSize;
+        }
+    }
+
+    private void replay(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_OVERHEAD - 4 || position + 4 + length > buffer.capacity()) {
+                break;
+            }
+
+            int bodyLength = length - 4;
+            if (buffer.getInt(position + 4 + bodyLength) != checksum(buffer, position + 4, bodyLength)) {
+                LOGGER.log(Level.WARNING, () -> String.format("Ignoring torn record at the end of '%s'", segment.path));
+                break;
+            }
+
+            ByteBuffer reader = buffer.duplicate();
+            reader.position(position + 4);
+            byte type = reader.get();
+            byte[] keyBytes = new byte[reader.getShort()];
+            reader.get(keyBytes);
+            int valueLength = reader.getInt();
+            apply(type, new String(keyBytes, UTF_8), new Location(segment, reader.position(), valueLength, length + 4));
+            position += length + 4;
+        }
+
+        /* clear whatever is left of an incomplete write so that it can't be mistaken for a record later on */
+        for (int i = position; i < buffer.capacity() && i < position + RECORD_OVERHEAD; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        segment.writePosition = position;
+    }
+
+    private Segment roll(int minimumSize) throws IOException {
+        long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+        Segment segment = new Segment(number, segmentPath(number), Math.max(segmentSize, minimumSize));
+        segments.add(segment);
+        return segment;
+    }
+
+    private void delete(List<Segment> old) throws IOException {
+        for (Segment segment : old) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+        segments.removeAll(old);
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+}
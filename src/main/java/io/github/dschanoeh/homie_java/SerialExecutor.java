@@ -0,0 +1,78 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one after another, in submission order, on a shared executor.
+ * Tasks of different serial executors run in parallel. Each task is
+ * submitted separately so a busy queue doesn't hog a pooled thread. Once
+ * the queue is full, the oldest waiting task is dropped.
+ */
+final class SerialExecutor {
+
+    private final Executor executor;
+    private final int capacity;
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+    private boolean scheduled;
+
+    SerialExecutor(Executor executor, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues the task.
+     *
+     * @return true if a waiting task had to be dropped to make room
+     */
+    synchronized boolean execute(Runnable task) {
+        boolean dropped = false;
+        if (queue.size() >= capacity) {
+            queue.poll();
+            dropped = true;
+        }
+        queue.add(task);
+        if (!scheduled) {
+            schedule();
+        }
+        return dropped;
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    private void schedule() {
+        scheduled = true;
+        try {
+            executor.execute(this::runNext);
+        } catch (RuntimeException e) {
+            scheduled = false;
+            throw e;
+        }
+    }
+
+    private void runNext() {
+        Runnable task;
+        synchronized (this) {
+            task = queue.poll();
+        }
+        try {
+            if (task != null) {
+                task.run();
+            }
+        } finally {
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Message that hands its payload array to the MQTT client as is. Paho's
+ * {@link MqttMessage} clones the array in its constructor and in setPayload,
+ * so encoded values would be copied a second time for every publish. The
+ * array must not be modified after the message was created.
+ */
+final class SharedPayloadMessage extends MqttMessage {
+
+    private byte[] payload;
+
+    SharedPayloadMessage(byte[] payload) {
+        if (payload == null) {
+            throw new NullPointerException("payload");
+        }
+        this.payload = payload;
+    }
+
+    @Override
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    @Override
+    public void setPayload(byte[] payload) {
+        if (payload == null) {
+            throw new NullPointerException("payload");
+        }
+        this.payload = payload;
+    }
+
+    @Override
+    public void clearPayload() {
+        payload = new byte[0];
+    }
+
+    @Override
+    public String toString() {
+        return new String(payload);
+    }
+}
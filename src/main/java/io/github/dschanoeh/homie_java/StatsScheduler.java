@@ -0,0 +1,97 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the $stats of many devices from a single executor. Devices with
+ * the same stats interval are batched: one task per interval publishes the
+ * stats of all of them in the same tick. The stats bypass the outbox and wait
+ * for a slot of the in-flight window without blocking, so a device whose
+ * broker stopped acknowledging doesn't delay the stats of the others.
+ */
+public class StatsScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(StatsScheduler.class.getName());
+
+    private final ScheduledExecutorService executor;
+    private final Map<Integer, Batch> batches = new HashMap<>();
+
+    private static final class Batch {
+        final List<Homie> devices = new CopyOnWriteArrayList<>();
+        ScheduledFuture<?> future;
+    }
+
+    private static final class DefaultHolder {
+        static final StatsScheduler INSTANCE = new StatsScheduler(Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "homie-stats");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Creates a scheduler that runs on the given executor. The executor is
+     * not shut down by the scheduler.
+     */
+    public StatsScheduler(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the scheduler shared by all devices that don't configure their
+     * own. It runs on a single daemon thread.
+     */
+    public static StatsScheduler getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    synchronized void register(Homie device, int interval) {
+        Batch batch = batches.get(interval);
+        if (batch == null) {
+            batch = new Batch();
+            List<Homie> devices = batch.devices;
+            batch.future = executor.scheduleAtFixedRate(() -> tick(devices), interval, interval, TimeUnit.MILLISECONDS);
+            batches.put(interval, batch);
+        }
+        if (!batch.devices.contains(device)) {
+            batch.devices.add(device);
+        }
+    }
+
+    synchronized void unregister(Homie device) {
+        batches.values().removeIf(batch -> {
+            batch.devices.remove(device);
+            if (batch.devices.isEmpty()) {
+                batch.future.cancel(false);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Number of devices whose stats are currently published.
+     */
+    synchronized int size() {
+        return batches.values().stream().mapToInt(batch -> batch.devices.size()).sum();
+    }
+
+    private static void tick(List<Homie> devices) {
+        for (Homie device : devices) {
+            try {
+                device.sendStats();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not send stats", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package io.github.dschanoeh.homie_java;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel that runs many short delayed tasks on a single thread.
+ * Tasks fire at the first tick after their deadline and must not block. The
+ * thread is started with the first task and ends once no tasks are pending.
+ */
+final class TimerWheel {
+
+    private static final Logger LOGGER = Logger.getLogger(TimerWheel.class.getName());
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running if it didn't run yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static final class DefaultHolder {
+        static final TimerWheel INSTANCE = new TimerWheel(10, TimeUnit.MILLISECONDS, 512, "homie-timer");
+    }
+
+    private final long tickNanos;
+    private final List<ArrayDeque<Timeout>> buckets;
+    private final int mask;
+    private final String name;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private Thread worker;
+
+    /**
+     * @param tick the resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param name name of the worker thread
+     */
+    TimerWheel(long tick, TimeUnit unit, int wheelSize, String name) {
+        if (tick <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNanos = unit.toNanos(tick);
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        this.name = name;
+    }
+
+    /**
+     * Returns the wheel shared by all devices. It is created with the first
+     * rate limited property and its thread only runs while tasks are pending.
+     */
+    static TimerWheel getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Runs the task once the delay has passed.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        synchronized (this) {
+            if (worker == null) {
+                worker = new Thread(this::run, name);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns the number of tasks that neither ran nor were discarded after
+     * being cancelled.
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        long tick = 0;
+        while (true) {
+            long deadline = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+
+            transferAdded(start, tick);
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+
+            synchronized (this) {
+                if (pending.get() == 0 && added.isEmpty()) {
+                    worker = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void transferAdded(long start, long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            /* round up so that a task never fires before its deadline */
+            long ticks = Math.max(0, (timeout.deadline - start + tickNanos - 1) / tickNanos - 1);
+            timeout.remainingRounds = Math.max(0, (ticks - tick) / buckets.size());
+            buckets.get((int) (Math.max(ticks, tick) & mask)).add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+                pending.decrementAndGet();
+            } else if (timeout.remainingRounds <= 0) {
+                iterator.remove();
+                pending.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Timer task failed", e);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+}
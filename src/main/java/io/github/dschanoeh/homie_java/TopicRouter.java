@@ -0,0 +1,94 @@
+package io.github.dschanoeh.homie_java;
+
+/**
+ * Maps topics relative to a device (e.g. "node/property/set") to values.
+ * Lookups work on a region of the full topic and therefore don't allocate a
+ * substring. Open addressing with linear probing, keys hash like
+ * {@link String#hashCode()}.
+ */
+final class TopicRouter<T> {
+
+    private String[] keys = new String[16];
+    private Object[] values = new Object[16];
+    private int size;
+
+    synchronized void put(String key, T value) {
+        int index = indexOf(key, 0, key.length(), key.hashCode());
+        if (keys[index] == null) {
+            keys[index] = key;
+            size++;
+        }
+        values[index] = value;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    synchronized void remove(String key) {
+        int index = indexOf(key, 0, key.length(), key.hashCode());
+        if (keys[index] == null) {
+            return;
+        }
+        keys[index] = null;
+        values[index] = null;
+        size--;
+
+        /* re-insert the rest of the cluster so that no probe sequence is broken */
+        int mask = keys.length - 1;
+        for (int i = (index + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            String k = keys[i];
+            Object v = values[i];
+            keys[i] = null;
+            values[i] = null;
+            int target = indexOf(k, 0, k.length(), k.hashCode());
+            keys[target] = k;
+            values[target] = v;
+        }
+    }
+
+    /**
+     * Returns the value for the part of the topic that starts at offset or
+     * null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T route(String topic, int offset) {
+        int hash = 0;
+        for (int i = offset; i < topic.length(); i++) {
+            hash = 31 * hash + topic.charAt(i);
+        }
+        return (T) values[indexOf(topic, offset, topic.length() - offset, hash)];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the slot holding the key or the empty slot where it belongs.
+     */
+    private int indexOf(String topic, int offset, int length, int hash) {
+        int mask = keys.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            String key = keys[index];
+            if (key == null || (key.length() == length && topic.regionMatches(offset, key, 0, length))) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = indexOf(oldKeys[i], 0, oldKeys[i].length(), oldKeys[i].hashCode());
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
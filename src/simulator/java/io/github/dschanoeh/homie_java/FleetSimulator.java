@@ -0,0 +1,560 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Load generator that runs a fleet of devices in one JVM against a broker.
+ * Every device sends the values of its properties at a fixed rate while a
+ * separate client publishes set messages to them. At the end a JSON summary of
+ * publish and set dispatch latency, throughput, allocation rate and thread
+ * count is written to stdout or a file.
+ * <p>
+ * Publish latency is measured from calling send until the broker acknowledged
+ * the message, set dispatch latency from publishing the set message until the
+ * callback of the property is called.
+ */
+public final class FleetSimulator {
+
+    private static final Logger LOGGER = Logger.getLogger(FleetSimulator.class.getName());
+
+    /**
+     * Command line options, see {@link #USAGE}.
+     */
+    static final class Options {
+        String brokerUrl = "tcp://127.0.0.1:1883";
+        String brokerUsername;
+        String brokerPassword;
+        String baseTopic = "homie";
+        String devicePrefix = "sim";
+        int devices = 10;
+        int nodes = 1;
+        int properties = 5;
+        double sendRate = 1.0;
+        double setRate = 0.0;
+        int warmup = 10;
+        int duration = 60;
+        int connectTimeout = 60;
+        int senderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        String output;
+        boolean verbose;
+    }
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -jar homie-java-simulator-<version>.jar [options]",
+            "  --broker=URL            broker to connect to (tcp://127.0.0.1:1883)",
+            "  --username=NAME         broker user name",
+            "  --password=SECRET       broker password",
+            "  --base-topic=TOPIC      homie base topic (homie)",
+            "  --device-prefix=ID      prefix of the device IDs (sim)",
+            "  --devices=N             number of devices (10)",
+            "  --nodes=N               nodes per device (1)",
+            "  --properties=N          properties per node (5)",
+            "  --send-rate=R           values sent per property and second (1.0)",
+            "  --set-rate=R            set messages per device and second (0)",
+            "  --warmup=S              seconds before measuring (10)",
+            "  --duration=S            seconds to measure (60)",
+            "  --connect-timeout=S     seconds to wait for all devices to get ready (60)",
+            "  --sender-threads=N      threads sending the values (half the cores)",
+            "  --output=FILE           write the summary to a file instead of stdout",
+            "  --verbose               keep the log output of the devices");
+
+    private final Options options;
+    private final List<Homie> fleet = new ArrayList<>();
+    private final List<Property> properties = new ArrayList<>();
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    private final LatencyHistogram setLatency = new LatencyHistogram();
+    private final LongAdder publishFailures = new LongAdder();
+    private final LongAdder setsSent = new LongAdder();
+    private final LongAdder setFailures = new LongAdder();
+    private volatile boolean measuring;
+
+    FleetSimulator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--help")) {
+            System.out.println(USAGE);
+            return;
+        }
+        Options options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (!options.verbose) {
+            Logger.getLogger(Homie.class.getPackage().getName()).setLevel(Level.WARNING);
+        }
+
+        try {
+            String summary = new FleetSimulator(options).run();
+            if (options.output == null) {
+                System.out.println(summary);
+            } else {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(options.output), UTF_8)) {
+                    writer.write(summary);
+                }
+            }
+        } catch (IOException | MqttException e) {
+            LOGGER.log(Level.SEVERE, "Simulation failed", e);
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+        /* the communication threads of the MQTT clients are not daemons */
+        System.exit(0);
+    }
+
+    static Options parse(String[] args) {
+        Options o = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument '" + arg + "'");
+            }
+            String name = arg.substring(2);
+            String value = null;
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            }
+            if (name.equals("verbose")) {
+                o.verbose = true;
+                continue;
+            }
+            if (value == null) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for --" + name);
+                }
+                value = args[++i];
+            }
+            switch (name) {
+                case "broker": o.brokerUrl = value; break;
+                case "username": o.brokerUsername = value; break;
+                case "password": o.brokerPassword = value; break;
+                case "base-topic": o.baseTopic = value; break;
+                case "device-prefix": o.devicePrefix = value; break;
+                case "devices": o.devices = positive(name, value); break;
+                case "nodes": o.nodes = positive(name, value); break;
+                case "properties": o.properties = positive(name, value); break;
+                case "send-rate": o.sendRate = rate(name, value); break;
+                case "set-rate": o.setRate = rate(name, value); break;
+                case "warmup": o.warmup = nonNegative(name, value); break;
+                case "duration": o.duration = positive(name, value); break;
+                case "connect-timeout": o.connectTimeout = positive(name, value); break;
+                case "sender-threads": o.senderThreads = positive(name, value); break;
+                case "output": o.output = value; break;
+                default: throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        return o;
+    }
+
+    private static int positive(String name, String value) {
+        int n = nonNegative(name, value);
+        if (n == 0) {
+            throw new IllegalArgumentException("--" + name + " must be positive");
+        }
+        return n;
+    }
+
+    private static int nonNegative(String name, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n < 0) {
+                throw new IllegalArgumentException("--" + name + " must not be negative");
+            }
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects a number, got '" + value + "'");
+        }
+    }
+
+    private static double rate(String name, String value) {
+        try {
+            double rate = Double.parseDouble(value);
+            if (!(rate >= 0) || Double.isInfinite(rate)) {
+                throw new IllegalArgumentException("--" + name + " must not be negative");
+            }
+            return rate;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects a number, got '" + value + "'");
+        }
+    }
+
+    /**
+     * Runs the simulation and returns the summary as JSON.
+     */
+    String run() throws InterruptedException, MqttException {
+        long connectStart = System.nanoTime();
+        createFleet();
+        int ready = awaitReady(connectStart + TimeUnit.SECONDS.toNanos(options.connectTimeout));
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        if (ready < fleet.size()) {
+            LOGGER.log(Level.WARNING, "Only {0} of {1} devices got ready", new Object[]{ready, fleet.size()});
+        }
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(options.senderThreads, new ThreadFactory("sim-sender"));
+        MqttAsyncClient commander = options.setRate > 0 ? connectCommander() : null;
+        try {
+            scheduleSends(senders);
+            if (commander != null) {
+                scheduleSets(senders, commander);
+            }
+
+            TimeUnit.SECONDS.sleep(options.warmup);
+            publishLatency.reset();
+            setLatency.reset();
+            publishFailures.reset();
+            setsSent.reset();
+            setFailures.reset();
+            long rejectedBefore = rejectedSetMessages();
+            long droppedBefore = droppedSetMessages();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            measuring = true;
+
+            TimeUnit.SECONDS.sleep(options.duration);
+
+            measuring = false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long allocatedAfter = allocatedBytes();
+            int threadCount = threads.getThreadCount();
+            int peakThreadCount = threads.getPeakThreadCount();
+            senders.shutdownNow();
+            /* let the last acknowledgements of the window arrive */
+            senders.awaitTermination(5, TimeUnit.SECONDS);
+            TimeUnit.SECONDS.sleep(1);
+
+            Json json = new Json();
+            json.begin();
+            json.field("brokerUrl", options.brokerUrl);
+            json.field("devices", options.devices);
+            json.field("nodesPerDevice", options.nodes);
+            json.field("propertiesPerNode", options.properties);
+            json.field("sendRatePerProperty", options.sendRate);
+            json.field("setRatePerDevice", options.setRate);
+            json.field("readyDevices", ready);
+            json.field("connectSeconds", connectSeconds);
+            json.field("measuredSeconds", seconds);
+            json.object("publish");
+            json.field("acknowledged", publishLatency.getCount());
+            json.field("failed", publishFailures.sum());
+            json.field("perSecond", publishLatency.getCount() / seconds);
+            latency(json, publishLatency);
+            json.end();
+            json.object("set");
+            json.field("sent", setsSent.sum());
+            json.field("failed", setFailures.sum());
+            json.field("dispatched", setLatency.getCount());
+            json.field("rejected", rejectedSetMessages() - rejectedBefore);
+            json.field("dropped", droppedSetMessages() - droppedBefore);
+            json.field("perSecond", setLatency.getCount() / seconds);
+            latency(json, setLatency);
+            json.end();
+            json.field("allocatedBytesPerSecond",
+                    allocatedBefore < 0 || allocatedAfter < 0 ? -1 : (allocatedAfter - allocatedBefore) / seconds);
+            json.field("threads", threadCount);
+            json.field("peakThreads", peakThreadCount);
+            json.end();
+            return json.toString();
+        } finally {
+            senders.shutdownNow();
+            if (commander != null) {
+                closeCommander(commander);
+            }
+            for (Homie homie : fleet) {
+                homie.shutdown();
+            }
+        }
+    }
+
+    private void createFleet() {
+        for (int d = 0; d < options.devices; d++) {
+            Configuration c = new Configuration();
+            c.setBrokerUrl(options.brokerUrl);
+            c.setBrokerUsername(options.brokerUsername);
+            c.setBrokerPassword(options.brokerPassword);
+            c.setBaseTopic(options.baseTopic);
+            c.setDeviceID(options.devicePrefix + "-" + d);
+            c.setDeviceName("Simulated device " + d);
+            Homie homie = new Homie(c, "homie-java fleet simulator", "1.0");
+
+            for (int n = 0; n < options.nodes; n++) {
+                Node node = homie.createNode("node-" + n, "simulated");
+                for (int p = 0; p < options.properties; p++) {
+                    Property property = node.getProperty("property-" + p);
+                    property.setDataType(Property.DataType.INTEGER);
+                    if (options.setRate > 0) {
+                        /* set messages carry the time they were published at */
+                        property.makeSettableLong((prop, sentAt) -> {
+                            if (measuring) {
+                                setLatency.record(System.nanoTime() - sentAt);
+                            }
+                        });
+                    }
+                    properties.add(property);
+                }
+            }
+            fleet.add(homie);
+            homie.setup();
+        }
+    }
+
+    private int awaitReady(long deadline) throws InterruptedException {
+        int ready = 0;
+        while (System.nanoTime() < deadline) {
+            ready = 0;
+            for (Homie homie : fleet) {
+                if (homie.getState() == Homie.State.READY) {
+                    ready++;
+                }
+            }
+            if (ready == fleet.size()) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return ready;
+    }
+
+    private void scheduleSends(ScheduledExecutorService senders) {
+        if (options.sendRate == 0) {
+            return;
+        }
+        long period = Math.max(1, (long) (1e9 / options.sendRate));
+        for (Property property : properties) {
+            AtomicLong value = new AtomicLong();
+            senders.scheduleAtFixedRate(() -> send(property, value.incrementAndGet()),
+                    ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void send(Property property, long value) {
+        boolean measured = measuring;
+        long start = System.nanoTime();
+        property.send(value).whenComplete((v, e) -> {
+            if (!measured) {
+                return;
+            }
+            if (e == null) {
+                publishLatency.record(System.nanoTime() - start);
+            } else {
+                publishFailures.increment();
+            }
+        });
+    }
+
+    private MqttAsyncClient connectCommander() throws MqttException {
+        MqttAsyncClient commander = new MqttAsyncClient(options.brokerUrl, options.devicePrefix + "-commander",
+                new MemoryPersistence());
+        MqttConnectOptions connectOptions = new MqttConnectOptions();
+        if (options.brokerUsername != null) {
+            connectOptions.setUserName(options.brokerUsername);
+        }
+        if (options.brokerPassword != null) {
+            connectOptions.setPassword(options.brokerPassword.toCharArray());
+        }
+        commander.connect(connectOptions).waitForCompletion(TimeUnit.SECONDS.toMillis(options.connectTimeout));
+        return commander;
+    }
+
+    private void scheduleSets(ScheduledExecutorService senders, MqttAsyncClient commander) {
+        long period = Math.max(1, (long) (1e9 / options.setRate));
+        int perDevice = options.nodes * options.properties;
+        for (int d = 0; d < fleet.size(); d++) {
+            String devicePath = options.baseTopic + "/" + options.devicePrefix + "-" + d + "/";
+            String[] topics = new String[perDevice];
+            for (int i = 0; i < perDevice; i++) {
+                topics[i] = devicePath + "node-" + i / options.properties + "/property-" + i % options.properties + "/set";
+            }
+            AtomicInteger next = new AtomicInteger();
+            senders.scheduleAtFixedRate(() -> {
+                String topic = topics[Math.floorMod(next.getAndIncrement(), topics.length)];
+                boolean measured = measuring;
+                try {
+                    /* QoS 0 so that commands are not limited by the client's in-flight window */
+                    commander.publish(topic, Long.toString(System.nanoTime()).getBytes(UTF_8), 0, false);
+                    if (measured) {
+                        setsSent.increment();
+                    }
+                } catch (MqttException e) {
+                    if (measured) {
+                        setFailures.increment();
+                    }
+                }
+            }, ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void closeCommander(MqttAsyncClient commander) {
+        try {
+            commander.disconnectForcibly();
+            commander.close();
+        } catch (MqttException e) {
+            LOGGER.log(Level.INFO, "Failed to close the commander", e);
+        }
+    }
+
+    private long rejectedSetMessages() {
+        long sum = 0;
+        for (Homie homie : fleet) {
+            sum += homie.getRejectedSetMessages();
+        }
+        return sum;
+    }
+
+    private long droppedSetMessages() {
+        long sum = 0;
+        for (Homie homie : fleet) {
+            sum += homie.getDroppedSetMessages();
+        }
+        return sum;
+    }
+
+    /**
+     * Bytes allocated by all live threads so far, or -1 if the JVM doesn't
+     * track it. Allocations of threads that ended are not included.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long sum = 0;
+        for (long bytes : hotspot.getThreadAllocatedBytes(hotspot.getAllThreadIds())) {
+            if (bytes > 0) {
+                sum += bytes;
+            }
+        }
+        return sum;
+    }
+
+    private static void latency(Json json, LatencyHistogram histogram) {
+        json.object("latencyMicros");
+        json.field("mean", histogram.getMean() / 1e3);
+        json.field("p50", histogram.getValueAtPercentile(50) / 1e3);
+        json.field("p99", histogram.getValueAtPercentile(99) / 1e3);
+        json.field("p999", histogram.getValueAtPercentile(99.9) / 1e3);
+        json.field("max", histogram.getMax() / 1e3);
+        json.end();
+    }
+
+    /**
+     * Minimal writer for the flat summary, values are numbers or plain strings.
+     */
+    static final class Json {
+        private final StringBuilder out = new StringBuilder();
+        private boolean first = true;
+
+        void begin() {
+            out.append('{');
+            first = true;
+        }
+
+        void object(String name) {
+            name(name);
+            begin();
+        }
+
+        void end() {
+            out.append('}');
+            first = false;
+        }
+
+        void field(String name, String value) {
+            name(name);
+            if (value == null) {
+                out.append("null");
+                return;
+            }
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        void field(String name, long value) {
+            name(name);
+            out.append(value);
+        }
+
+        void field(String name, double value) {
+            name(name);
+            out.append(String.format(Locale.ROOT, "%.3f", value));
+        }
+
+        private void name(String name) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"').append(name).append("\":");
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+
+    private static final class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        ThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
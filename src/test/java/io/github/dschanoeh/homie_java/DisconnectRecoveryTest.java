@@ -9,8 +9,15 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.RegisterExtension;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 class DisconnectRecoveryTest {
@@ -18,17 +25,19 @@ class DisconnectRecoveryTest {
     private static final String FIRMWARE_VERSION = "1.0";
     private static final String DEVICE_ID = "device";
     private static final String DEVICE_NAME = "My Device Name";
-    private static final String TEST_BROKER_URL = "tcp://127.0.0.1:1883";
     private static final String TEST_VALUE = "foo";
     private static final String TEST_NODE = "node";
     private static final String TEST_PROPERTY = "property";
 
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
     private final Homie homie;
     private MqttClient client;
 
     public DisconnectRecoveryTest() {
         Configuration c = new Configuration();
-        c.setBrokerUrl(TEST_BROKER_URL);
+        c.setBrokerUrl(BROKER.getUrl());
         c.setDeviceID(DEVICE_ID);
         c.setDeviceName(DEVICE_NAME);
         homie = new Homie(c, FIRMWARE_NAME, FIRMWARE_VERSION);
@@ -36,7 +45,7 @@ class DisconnectRecoveryTest {
 
     @BeforeEach
     void initializeClient() throws MqttException {
-        client = new MqttClient(TEST_BROKER_URL, MqttClient.generateClientId(), new MemoryPersistence());
+        client = new MqttClient(BROKER.getUrl(), MqttClient.generateClientId(), new MemoryPersistence());
         MqttConnectOptions options = new MqttConnectOptions();
         client.connect(options);
     }
@@ -48,7 +57,7 @@ class DisconnectRecoveryTest {
     }
 
     @Test
-    void disconnectFlowTest() throws InterruptedException, IllegalAccessException, MqttException {
+    void disconnectFlowTest() throws InterruptedException, MqttException {
         final Boolean[] wasReceived = {false};
 
         Node node = homie.createNode(TEST_NODE, "type");
@@ -68,20 +77,11 @@ class DisconnectRecoveryTest {
             Thread.sleep(50);
         }
 
-        /* Fiddle with reflection to access the internal MQTT client */
-        MqttClient homieInternalMQTTClient = null;
-        Class<?> homieClass = homie.getClass();
-        Field[] fields = homieClass.getDeclaredFields();
-        for(Field f: fields) {
-            if(f.getName() == "client") {
-                f.setAccessible(true);
-                homieInternalMQTTClient = (MqttClient) f.get(homie);
-            }
+        /* Drop Homie's connection like a broken network would */
+        BROKER.getBroker().disconnect(DEVICE_ID);
+        while(homie.getState() == Homie.State.READY) {
+            Thread.sleep(10);
         }
-        assert(homieInternalMQTTClient != null);
-
-        /* Kill the connection */
-        homieInternalMQTTClient.disconnectForcibly();
 
         /* Wait until Homie reconnects again */
         while(homie.getState() != Homie.State.READY) {
@@ -96,4 +96,94 @@ class DisconnectRecoveryTest {
         Thread.sleep(100);
         assert wasReceived[0] == true;
     }
-}
\ No newline at end of file
+
+    /**
+     * Accepts connections and closes them right away, so every connection
+     * attempt fails.
+     */
+    private static void refuse(ServerSocket server, AtomicInteger attempts) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    attempts.incrementAndGet();
+                    socket.close();
+                }
+            } catch (IOException e) {
+                /* closed by the test */
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static boolean awaitState(Homie homie, Homie.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (homie.getState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Paho retries a failed 3.1.1 connect as 3.1 by default, which would open
+     * two connections per attempt.
+     */
+    private static MqttConnectOptions singleVersionOptions() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+        return options;
+    }
+
+    private static Configuration giveUpConfiguration(String url, String deviceID) {
+        Configuration c = new Configuration();
+        c.setBrokerUrl(url);
+        c.setDeviceID(deviceID);
+        c.setDisconnectRetry(10);
+        c.setMaxDisconnectRetry(10);
+        c.setMaxConnectAttempts(3);
+        return c;
+    }
+
+    @Test
+    void giveUpBeforeReady() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            AtomicInteger attempts = new AtomicInteger();
+            refuse(server, attempts);
+            Homie device = new Homie(giveUpConfiguration("tcp://localhost:" + server.getLocalPort(), "never-ready"),
+                    FIRMWARE_NAME, FIRMWARE_VERSION, singleVersionOptions());
+            device.setup();
+            try {
+                assertTrue(awaitState(device, Homie.State.LOST));
+                assertEquals(3, attempts.get());
+            } finally {
+                device.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void giveUpAfterLosingConnection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            AtomicInteger attempts = new AtomicInteger();
+            refuse(server, attempts);
+            Configuration c = giveUpConfiguration(BROKER.getUrl(), "lost-device");
+            Homie device = new Homie(c, FIRMWARE_NAME, FIRMWARE_VERSION, singleVersionOptions());
+            device.setup();
+            try {
+                assertTrue(awaitState(device, Homie.State.READY));
+
+                /* losing the connection doesn't count, the three reconnects after it do */
+                c.setBrokerUrl("tcp://localhost:" + server.getLocalPort());
+                BROKER.getBroker().disconnect("lost-device");
+                assertTrue(awaitState(device, Homie.State.LOST));
+                assertEquals(3, attempts.get());
+            } finally {
+                device.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,724 @@
+package io.github.dschanoeh.homie_java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Minimal MQTT 3.1.1 broker on a single NIO thread, so that tests and load
+ * runs don't need an external broker. It supports retained messages,
+ * wildcards, last wills, QoS 0 and 1 and persistent sessions. QoS 2 publishes
+ * are accepted but delivered with QoS 1 at most.
+ * <p>
+ * Faults can be injected to exercise reconnects and throughput limits: a
+ * latency for everything the broker sends, a rate of inbound publishes that
+ * are dropped without acknowledgement and forced disconnects of clients.
+ */
+public class EmbeddedBroker implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(EmbeddedBroker.class.getName());
+    private static final int MAX_QUEUED_MESSAGES = 1000;
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private static final class Message {
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+        private final boolean retain;
+
+        private Message(String topic, byte[] payload, int qos, boolean retain) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retain = retain;
+        }
+    }
+
+    private static final class Session {
+        private final String clientId;
+        private final boolean clean;
+        private final Map<String, Integer> subscriptions = new LinkedHashMap<>();
+        private final Deque<Message> queued = new ArrayDeque<>();
+        private Connection connection;
+
+        private Session(String clientId, boolean clean) {
+            this.clientId = clientId;
+            this.clean = clean;
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Deque<ByteBuffer> out = new ArrayDeque<>();
+        private ByteBuffer in = ByteBuffer.allocate(8192);
+        private Session session;
+        private Message will;
+        private int lastPacketId;
+        private boolean closed;
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        private int nextPacketId() {
+            lastPacketId = lastPacketId % 0xffff + 1;
+            return lastPacketId;
+        }
+    }
+
+    /**
+     * Reads the fields of a packet body.
+     */
+    private static final class Body {
+        private final byte[] data;
+        private int position;
+
+        private Body(byte[] data) {
+            this.data = data;
+        }
+
+        private int readByte() {
+            return data[position++] & 0xff;
+        }
+
+        private int readShort() {
+            return readByte() << 8 | readByte();
+        }
+
+        private byte[] readBinary() {
+            int length = readShort();
+            byte[] value = new byte[length];
+            System.arraycopy(data, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        private String readString() {
+            return new String(readBinary(), UTF_8);
+        }
+
+        private byte[] readRest() {
+            byte[] value = new byte[data.length - position];
+            System.arraycopy(data, position, value, 0, value.length);
+            position = data.length;
+            return value;
+        }
+
+        private boolean hasRemaining() {
+            return position < data.length;
+        }
+    }
+
+    /* all state below is only touched by the broker thread */
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Map<String, Message> retained = new HashMap<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService delayed = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "embedded-broker-latency");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long latencyMillis;
+    private volatile double dropRate;
+    private volatile Random random = new Random(0);
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     */
+    public EmbeddedBroker start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this::run, "embedded-broker");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public String getUrl() {
+        return "tcp://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * Delays every packet the broker sends, acknowledgements included.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        this.latencyMillis = unit.toMillis(latency);
+    }
+
+    /**
+     * Drops the given share of inbound publishes. Dropped publishes are
+     * neither acknowledged nor forwarded.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Seeds the decisions which publishes are dropped.
+     */
+    public void setSeed(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Removes all injected faults.
+     */
+    public void resetFaults() {
+        latencyMillis = 0;
+        dropRate = 0;
+    }
+
+    /**
+     * Closes the connection of the client like a broken network would. Its
+     * last will is published. Returns once the connection is closed.
+     *
+     * @return true if the client was connected
+     */
+    public boolean disconnect(String clientId) {
+        return call(() -> {
+            Session session = sessions.get(clientId);
+            if (session == null || session.connection == null) {
+                return false;
+            }
+            close(session.connection, true);
+            return true;
+        });
+    }
+
+    /**
+     * Closes the connections of all clients like a broken network would.
+     *
+     * @return the number of clients that were disconnected
+     */
+    public int disconnectAll() {
+        return call(() -> {
+            List<Connection> connections = new ArrayList<>();
+            for (Session session : sessions.values()) {
+                if (session.connection != null) {
+                    connections.add(session.connection);
+                }
+            }
+            connections.forEach(c -> close(c, true));
+            return connections.size();
+        });
+    }
+
+    public boolean isConnected(String clientId) {
+        return call(() -> sessions.containsKey(clientId) && sessions.get(clientId).connection != null);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        delayed.shutdownNow();
+    }
+
+    private interface Call<T> {
+        T call();
+    }
+
+    /**
+     * Runs the call on the broker thread and waits for its result.
+     */
+    private <T> T call(Call<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        tasks.add(() -> result.complete(call.call()));
+        selector.wakeup();
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Broker selector failed", e);
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    read(connection);
+                }
+                if (!connection.closed && key.isWritable()) {
+                    write(connection);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                close((Connection) key.attachment(), false);
+            }
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not close the broker", e);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not accept a connection", e);
+        }
+    }
+
+    private void read(Connection c) {
+        try {
+            if (c.channel.read(c.in) < 0) {
+                close(c, true);
+                return;
+            }
+        } catch (IOException e) {
+            close(c, true);
+            return;
+        }
+
+        c.in.flip();
+        while (!c.closed && c.in.remaining() >= 2) {
+            c.in.mark();
+            int header = c.in.get() & 0xff;
+            int length = 0;
+            int shift = 0;
+            int digit;
+            do {
+                if (!c.in.hasRemaining()) {
+                    length = -1;
+                    break;
+                }
+                digit = c.in.get() & 0xff;
+                length |= (digit & 0x7f) << shift;
+                shift += 7;
+            } while ((digit & 0x80) != 0 && shift < 28);
+            if (length < 0 || c.in.remaining() < length) {
+                c.in.reset();
+                break;
+            }
+
+            byte[] body = new byte[length];
+            c.in.get(body);
+            try {
+                handle(c, header, new Body(body));
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Closing connection after a malformed packet", e);
+                close(c, true);
+            }
+        }
+        if (c.closed) {
+            return;
+        }
+
+        c.in.compact();
+        if (!c.in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(c.in.capacity() * 2);
+            c.in.flip();
+            bigger.put(c.in);
+            c.in = bigger;
+        }
+    }
+
+    private void handle(Connection c, int header, Body body) {
+        int type = header >> 4;
+        if (c.session == null && type != CONNECT) {
+            throw new IllegalStateException("Expected CONNECT but got packet type " + type);
+        }
+
+        switch (type) {
+            case CONNECT:
+                connect(c, body);
+                break;
+            case PUBLISH:
+                publish(c, header, body);
+                break;
+            case PUBREL:
+                send(c, ack(PUBCOMP << 4, body.readShort()));
+                break;
+            case PUBACK:
+            case PUBREC:
+            case PUBCOMP:
+                /* deliveries to clients are not retried, so acknowledgements need no tracking */
+                break;
+            case SUBSCRIBE:
+                subscribe(c, body);
+                break;
+            case UNSUBSCRIBE:
+                int packetId = body.readShort();
+                while (body.hasRemaining()) {
+                    c.session.subscriptions.remove(body.readString());
+                }
+                send(c, ack(0xb0, packetId));
+                break;
+            case PINGREQ:
+                send(c, new byte[]{(byte) 0xd0, 0});
+                break;
+            case DISCONNECT:
+                c.will = null;
+                close(c, false);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported packet type " + type);
+        }
+    }
+
+    private void connect(Connection c, Body body) {
+        if (c.session != null) {
+            throw new IllegalStateException("Second CONNECT on a connection");
+        }
+        body.readString();
+        int level = body.readByte();
+        int flags = body.readByte();
+        body.readShort();
+        String clientId = body.readString();
+        if ((flags & 0x04) != 0) {
+            String topic = body.readString();
+            byte[] payload = body.readBinary();
+            c.will = new Message(topic, payload, (flags >> 3) & 3, (flags & 0x20) != 0);
+        }
+
+        boolean clean = (flags & 0x02) != 0;
+        if (level != 3 && level != 4) {
+            sendNow(c, new byte[]{0x20, 2, 0, 1});
+            close(c, false);
+            return;
+        }
+        if (clientId.isEmpty()) {
+            if (!clean) {
+                sendNow(c, new byte[]{0x20, 2, 0, 2});
+                close(c, false);
+                return;
+            }
+            clientId = UUID.randomUUID().toString();
+        }
+
+        /* take over the session of a client that is still connected with the same ID */
+        Session session = sessions.get(clientId);
+        if (session != null && session.connection != null) {
+            close(session.connection, true);
+            session = sessions.get(clientId);
+        }
+        boolean present = !clean && session != null;
+        if (!present) {
+            session = new Session(clientId, clean);
+            sessions.put(clientId, session);
+        }
+        session.connection = c;
+        c.session = session;
+
+        send(c, new byte[]{0x20, 2, (byte) (present ? 1 : 0), 0});
+        Message queued;
+        while ((queued = session.queued.poll()) != null) {
+            send(c, encodePublish(c, queued.topic, queued.payload, queued.qos, false));
+        }
+    }
+
+    private void publish(Connection c, int header, Body body) {
+        int qos = (header >> 1) & 3;
+        boolean retain = (header & 1) != 0;
+        String topic = body.readString();
+        int packetId = qos > 0 ? body.readShort() : 0;
+        byte[] payload = body.readRest();
+
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            return;
+        }
+        if (qos == 1) {
+            send(c, ack(PUBACK << 4, packetId));
+        } else if (qos == 2) {
+            send(c, ack(PUBREC << 4, packetId));
+        }
+        route(new Message(topic, payload, Math.min(qos, 1), retain));
+    }
+
+    private void subscribe(Connection c, Body body) {
+        int packetId = body.readShort();
+        List<String> filters = new ArrayList<>();
+        List<Integer> granted = new ArrayList<>();
+        while (body.hasRemaining()) {
+            String filter = body.readString();
+            int qos = Math.min(body.readByte() & 3, 1);
+            c.session.subscriptions.put(filter, qos);
+            filters.add(filter);
+            granted.add(qos);
+        }
+
+        byte[] suback = new byte[4 + granted.size()];
+        suback[0] = (byte) 0x90;
+        suback[1] = (byte) (2 + granted.size());
+        suback[2] = (byte) (packetId >> 8);
+        suback[3] = (byte) packetId;
+        for (int i = 0; i < granted.size(); i++) {
+            suback[4 + i] = granted.get(i).byteValue();
+        }
+        send(c, suback);
+
+        for (int i = 0; i < filters.size(); i++) {
+            for (Message message : retained.values()) {
+                if (matches(filters.get(i), message.topic)) {
+                    send(c, encodePublish(c, message.topic, message.payload, Math.min(message.qos, granted.get(i)), true));
+                }
+            }
+        }
+    }
+
+    private void route(Message message) {
+        if (message.retain) {
+            if (message.payload.length == 0) {
+                retained.remove(message.topic);
+            } else {
+                retained.put(message.topic, message);
+            }
+        }
+
+        /* a failing send closes its connection, which can remove a session */
+        for (Session session : new ArrayList<>(sessions.values())) {
+            int granted = -1;
+            for (Map.Entry<String, Integer> subscription : session.subscriptions.entrySet()) {
+                if (matches(subscription.getKey(), message.topic)) {
+                    granted = Math.max(granted, subscription.getValue());
+                }
+            }
+            if (granted < 0) {
+                continue;
+            }
+
+            int qos = Math.min(granted, message.qos);
+            if (session.connection != null) {
+                send(session.connection, encodePublish(session.connection, message.topic, message.payload, qos, false));
+            } else if (!session.clean && qos > 0) {
+                if (session.queued.size() >= MAX_QUEUED_MESSAGES) {
+                    session.queued.poll();
+                }
+                session.queued.add(message);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the topic matches the filter, which may contain + and #
+     * wildcards. Topics starting with $ only match filters that don't start
+     * with a wildcard.
+     */
+    static boolean matches(String filter, String topic) {
+        if (topic.startsWith("$") && (filter.startsWith("+") || filter.startsWith("#"))) {
+            return false;
+        }
+
+        int f = 0;
+        int t = 0;
+        while (true) {
+            int filterEnd = filter.indexOf('/', f);
+            filterEnd = filterEnd < 0 ? filter.length() : filterEnd;
+            if (filterEnd - f == 1 && filter.charAt(f) == '#') {
+                return true;
+            }
+
+            int topicEnd = topic.indexOf('/', t);
+            topicEnd = topicEnd < 0 ? topic.length() : topicEnd;
+            boolean wildcard = filterEnd - f == 1 && filter.charAt(f) == '+';
+            if (!wildcard && (filterEnd - f != topicEnd - t || !filter.regionMatches(f, topic, t, filterEnd - f))) {
+                return false;
+            }
+
+            boolean lastFilterLevel = filterEnd == filter.length();
+            boolean lastTopicLevel = topicEnd == topic.length();
+            if (lastTopicLevel) {
+                /* a/# also matches a */
+                return lastFilterLevel || filter.length() - filterEnd == 2 && filter.charAt(filterEnd + 1) == '#';
+            }
+            if (lastFilterLevel) {
+                return false;
+            }
+            f = filterEnd + 1;
+            t = topicEnd + 1;
+        }
+    }
+
+    private static byte[] ack(int header, int packetId) {
+        return new byte[]{(byte) header, 2, (byte) (packetId >> 8), (byte) packetId};
+    }
+
+    private static byte[] encodePublish(Connection c, String topic, byte[] payload, int qos, boolean retain) {
+        byte[] topicBytes = topic.getBytes(UTF_8);
+        int length = 2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length;
+        int lengthBytes = length < 128 ? 1 : length < 16384 ? 2 : length < 2097152 ? 3 : 4;
+        byte[] packet = new byte[1 + lengthBytes + length];
+
+        int i = 0;
+        packet[i++] = (byte) (PUBLISH << 4 | qos << 1 | (retain ? 1 : 0));
+        int remaining = length;
+        do {
+            int digit = remaining & 0x7f;
+            remaining >>>= 7;
+            packet[i++] = (byte) (remaining > 0 ? digit | 0x80 : digit);
+        } while (remaining > 0);
+        packet[i++] = (byte) (topicBytes.length >> 8);
+        packet[i++] = (byte) topicBytes.length;
+        System.arraycopy(topicBytes, 0, packet, i, topicBytes.length);
+        i += topicBytes.length;
+        if (qos > 0) {
+            int packetId = c.nextPacketId();
+            packet[i++] = (byte) (packetId >> 8);
+            packet[i++] = (byte) packetId;
+        }
+        System.arraycopy(payload, 0, packet, i, payload.length);
+        return packet;
+    }
+
+    /**
+     * Sends the packet after the injected latency.
+     */
+    private void send(Connection c, byte[] packet) {
+        long latency = latencyMillis;
+        if (latency <= 0) {
+            sendNow(c, packet);
+            return;
+        }
+        delayed.schedule(() -> {
+            tasks.add(() -> sendNow(c, packet));
+            selector.wakeup();
+        }, latency, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendNow(Connection c, byte[] packet) {
+        if (c.closed) {
+            return;
+        }
+        c.out.add(ByteBuffer.wrap(packet));
+        write(c);
+    }
+
+    private void write(Connection c) {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = c.out.peek()) != null) {
+                c.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                c.out.poll();
+            }
+        } catch (IOException e) {
+            close(c, true);
+            return;
+        }
+        c.key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void close(Connection c, boolean publishWill) {
+        if (c.closed) {
+            return;
+        }
+        c.closed = true;
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close a connection", e);
+        }
+
+        Session session = c.session;
+        if (session != null && session.connection == c) {
+            session.connection = null;
+            if (session.clean) {
+                sessions.remove(session.clientId);
+            }
+        }
+        if (publishWill && c.will != null) {
+            route(c.will);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Runs an {@link EmbeddedBroker} on an ephemeral port for the tests of a
+ * class. Register it in a static field with {@code @RegisterExtension}. The
+ * broker is started on first use, so test instances can already use the URL
+ * in their constructor. Injected faults are removed after each test.
+ */
+public class EmbeddedBrokerExtension implements BeforeAllCallback, AfterEachCallback, AfterAllCallback {
+
+    private EmbeddedBroker broker;
+
+    public synchronized EmbeddedBroker getBroker() {
+        if (broker == null) {
+            try {
+                broker = new EmbeddedBroker().start();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not start the embedded broker", e);
+            }
+        }
+        return broker;
+    }
+
+    public String getUrl() {
+        return getBroker().getUrl();
+    }
+
+    @Override
+    public void beforeAll(ExtensionContext context) {
+        getBroker();
+    }
+
+    @Override
+    public synchronized void afterEach(ExtensionContext context) {
+        if (broker != null) {
+            broker.resetFaults();
+        }
+    }
+
+    @Override
+    public synchronized void afterAll(ExtensionContext context) {
+        if (broker != null) {
+            broker.close();
+            broker = null;
+        }
+    }
+}
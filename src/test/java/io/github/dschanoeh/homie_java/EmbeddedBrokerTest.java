@@ -0,0 +1,153 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EmbeddedBrokerTest {
+
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
+    private static MqttClient connect(String clientId, MqttConnectOptions options) throws MqttException {
+        MqttClient client = new MqttClient(BROKER.getUrl(), clientId, new MemoryPersistence());
+        client.connect(options);
+        return client;
+    }
+
+    private static MqttClient connect(String clientId) throws MqttException {
+        return connect(clientId, new MqttConnectOptions());
+    }
+
+    @Test
+    void wildcards() {
+        assertTrue(EmbeddedBroker.matches("homie/+/+/set", "homie/device/node/set"));
+        assertFalse(EmbeddedBroker.matches("homie/+/+/set", "homie/device/set"));
+        assertTrue(EmbeddedBroker.matches("homie/#", "homie"));
+        assertTrue(EmbeddedBroker.matches("homie/#", "homie/device/$state"));
+        assertTrue(EmbeddedBroker.matches("#", "homie/device"));
+        assertFalse(EmbeddedBroker.matches("#", "$SYS/uptime"));
+        assertFalse(EmbeddedBroker.matches("+/uptime", "$SYS/uptime"));
+        assertTrue(EmbeddedBroker.matches("homie/+", "homie/"));
+        assertFalse(EmbeddedBroker.matches("homie/device", "homie/device/node"));
+    }
+
+    @Test
+    void retainedMessages() throws Exception {
+        MqttClient publisher = connect("retain-publisher");
+        publisher.publish("retain/device/$state", "ready".getBytes(), 1, true);
+
+        BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = connect("retain-subscriber");
+        subscriber.subscribe("retain/+/$state", (topic, message) -> received.add(message));
+        MqttMessage message = received.poll(1, TimeUnit.SECONDS);
+        assertEquals("ready", message.toString());
+        assertTrue(message.isRetained());
+
+        /* an empty retained message clears it */
+        publisher.publish("retain/device/$state", new byte[0], 1, true);
+        received.poll(1, TimeUnit.SECONDS);
+        subscriber.unsubscribe("retain/+/$state");
+        subscriber.subscribe("retain/+/$state", (topic, m) -> received.add(m));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+        publisher.disconnect();
+        subscriber.disconnect();
+    }
+
+    @Test
+    void lastWillOnForcedDisconnect() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = connect("will-subscriber");
+        subscriber.subscribe("will/#", (topic, message) -> received.add(message.toString()));
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setWill("will/device/$state", "lost".getBytes(), 1, true);
+        options.setAutomaticReconnect(false);
+        connect("will-device", options);
+        assertTrue(BROKER.getBroker().disconnect("will-device"));
+        assertEquals("lost", received.poll(1, TimeUnit.SECONDS));
+
+        subscriber.disconnect();
+    }
+
+    @Test
+    void persistentSession() throws Exception {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(false);
+        MqttClient subscriber = connect("session-subscriber", options);
+        subscriber.subscribe("session/+", 1);
+        subscriber.disconnect();
+
+        MqttClient publisher = connect("session-publisher");
+        publisher.publish("session/value", "queued".getBytes(), 1, false);
+
+        List<String> received = new CopyOnWriteArrayList<>();
+        subscriber.setCallback(new org.eclipse.paho.client.mqttv3.MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                received.add(message.toString());
+            }
+
+            @Override
+            public void deliveryComplete(org.eclipse.paho.client.mqttv3.IMqttDeliveryToken token) {
+            }
+        });
+        subscriber.connect(options);
+        Thread.sleep(200);
+        assertEquals(1, received.size());
+        assertEquals("queued", received.get(0));
+
+        publisher.disconnect();
+        subscriber.disconnect();
+    }
+
+    @Test
+    void injectedLatency() throws Exception {
+        MqttClient client = connect("latency-client");
+        BROKER.getBroker().setLatency(200, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        client.publish("latency/value", "1".getBytes(), 1, false);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        BROKER.getBroker().resetFaults();
+        client.disconnect();
+    }
+
+    @Test
+    void injectedDrops() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = connect("drop-subscriber");
+        subscriber.subscribe("drop/#", (topic, message) -> received.add(message.toString()));
+
+        MqttClient publisher = connect("drop-publisher");
+        BROKER.getBroker().setDropRate(1.0);
+        publisher.publish("drop/value", "1".getBytes(), 0, false);
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+        BROKER.getBroker().resetFaults();
+        publisher.publish("drop/value", "2".getBytes(), 0, false);
+        assertEquals("2", received.poll(1, TimeUnit.SECONDS));
+
+        publisher.disconnect();
+        subscriber.disconnect();
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class EnumFormatTest {
+
+    @Test
+    void lookup() {
+        EnumFormat format = new EnumFormat("off,eco,comfort,boost");
+        assertEquals(4, format.size());
+        assertEquals(2, format.ordinal("comfort"));
+        assertEquals(2, format.ordinal("comfort".getBytes(UTF_8)));
+        assertEquals(-1, format.ordinal("com"));
+        assertEquals(-1, format.ordinal("comfort2".getBytes(UTF_8)));
+        assertEquals("boost", new String(format.getPayload(3), UTF_8));
+    }
+
+    @Test
+    void manyValues() {
+        StringBuilder values = new StringBuilder("v0");
+        for (int i = 1; i < 500; i++) {
+            values.append(",v").append(i);
+        }
+        EnumFormat format = new EnumFormat(values.toString());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, format.ordinal("v" + i));
+            assertEquals(i, format.ordinal(("v" + i).getBytes(UTF_8)));
+        }
+    }
+
+    @Test
+    void duplicateValues() {
+        EnumFormat format = new EnumFormat("a,b,a");
+        assertEquals(3, format.size());
+        assertEquals(0, format.ordinal("a"));
+        assertEquals(0, format.ordinal("a".getBytes(UTF_8)));
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FleetSimulatorTest {
+
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
+    @Test
+    void parseOptions() {
+        FleetSimulator.Options options = FleetSimulator.parse(new String[]{
+                "--broker=tcp://broker:1883", "--devices", "100", "--send-rate=0.5", "--verbose"});
+        assertEquals("tcp://broker:1883", options.brokerUrl);
+        assertEquals(100, options.devices);
+        assertEquals(0.5, options.sendRate);
+        assertEquals(5, options.properties);
+        assertTrue(options.verbose);
+
+        assertThrows(IllegalArgumentException.class, () -> FleetSimulator.parse(new String[]{"--devices=0"}));
+        assertThrows(IllegalArgumentException.class, () -> FleetSimulator.parse(new String[]{"--send-rate=-1"}));
+        assertThrows(IllegalArgumentException.class, () -> FleetSimulator.parse(new String[]{"--nodes"}));
+        assertThrows(IllegalArgumentException.class, () -> FleetSimulator.parse(new String[]{"--unknown=1"}));
+    }
+
+    @Test
+    void run() throws Exception {
+        FleetSimulator.Options options = FleetSimulator.parse(new String[]{
+                "--broker=" + BROKER.getUrl(), "--devices=2", "--properties=2", "--send-rate=20",
+                "--set-rate=20", "--warmup=0", "--duration=1", "--connect-timeout=10"});
+        String summary = new FleetSimulator(options).run();
+
+        assertTrue(summary.startsWith("{") && summary.endsWith("}"), summary);
+        assertTrue(summary.contains("\"readyDevices\":2,"), summary);
+        assertTrue(summary.contains("\"p999\":"), summary);
+        assertTrue(summary.contains("\"failed\":0,"), summary);
+        assertTrue(!summary.contains("\"acknowledged\":0,"), summary);
+        assertTrue(!summary.contains("\"dispatched\":0,"), summary);
+    }
+}
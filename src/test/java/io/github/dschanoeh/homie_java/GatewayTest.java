@@ -0,0 +1,113 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class GatewayTest {
+    private static final String FIRMWARE_NAME = "TestFirmware";
+    private static final String FIRMWARE_VERSION = "1.0";
+    private static final String GATEWAY_ID = "test-gateway";
+    private static final int DEVICE_COUNT = 10;
+
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
+    private HomieGateway gateway;
+    private MqttClient client;
+
+    private static Configuration configuration(String deviceID) {
+        Configuration c = new Configuration();
+        c.setBrokerUrl(BROKER.getUrl());
+        c.setDeviceID(deviceID);
+        c.setDeviceName(deviceID);
+        return c;
+    }
+
+    @BeforeEach
+    void initializeClient() throws MqttException {
+        gateway = new HomieGateway(configuration(GATEWAY_ID), FIRMWARE_NAME, FIRMWARE_VERSION);
+        client = new MqttClient(BROKER.getUrl(), MqttClient.generateClientId(), new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        client.connect(options);
+    }
+
+    @AfterEach
+    void shutdownClient() throws MqttException {
+        client.disconnect();
+        gateway.shutdown();
+    }
+
+    @Test
+    void devicesShareConnection() throws MqttException, InterruptedException {
+        Map<String, String> states = new ConcurrentHashMap<>();
+        client.subscribe("homie/+/$state", (topic, message) -> states.put(topic, message.toString()));
+
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            Homie device = gateway.createDevice(configuration("device-" + i), FIRMWARE_NAME, FIRMWARE_VERSION);
+            device.createNode("node", "type").getProperty("property");
+        }
+        gateway.setup();
+        while(gateway.getState() != Homie.State.READY) {
+            Thread.sleep(50);
+        }
+
+        /* a device added while connected is advertised right away */
+        Homie late = gateway.createDevice(configuration("late-device"), FIRMWARE_NAME, FIRMWARE_VERSION);
+        while(late.getState() != Homie.State.READY) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(100);
+
+        assertEquals("ready", states.get("homie/" + GATEWAY_ID + "/$state"));
+        assertEquals("ready", states.get("homie/late-device/$state"));
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            assertEquals("ready", states.get("homie/device-" + i + "/$state"));
+        }
+
+        late.shutdown();
+        Thread.sleep(100);
+        assertEquals("disconnected", states.get("homie/late-device/$state"));
+    }
+
+    @Test
+    void settableDeviceProperty() throws MqttException, InterruptedException {
+        final String[] received = {null};
+        Homie device = gateway.createDevice(configuration("settable-device"), FIRMWARE_NAME, FIRMWARE_VERSION);
+        device.createNode("node", "type").getProperty("property")
+                .makeSettable((property, value) -> received[0] = value);
+        gateway.setup();
+        while(device.getState() != Homie.State.READY) {
+            Thread.sleep(50);
+        }
+
+        client.publish("homie/settable-device/node/property/set", new MqttMessage("on".getBytes()));
+        Thread.sleep(100);
+        assertEquals("on", received[0]);
+    }
+
+    @Test
+    void uniqueDeviceIDs() {
+        gateway.createDevice(configuration("device"), FIRMWARE_NAME, FIRMWARE_VERSION);
+        assertThrows(IllegalArgumentException.class, () -> {
+            gateway.createDevice(configuration("device"), FIRMWARE_NAME, FIRMWARE_VERSION);
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            gateway.createDevice(configuration(GATEWAY_ID), FIRMWARE_NAME, FIRMWARE_VERSION);
+        });
+    }
+}
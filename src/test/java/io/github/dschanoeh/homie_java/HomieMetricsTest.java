@@ -0,0 +1,123 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HomieMetricsTest {
+
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
+    private Homie homie;
+
+    private static class RecordingRegistry implements MetricsRegistry {
+        final Map<String, LongSupplier> values = new HashMap<>();
+        final Map<String, LatencyHistogram> histograms = new HashMap<>();
+
+        @Override
+        public void counter(String name, Map<String, String> tags, LongSupplier count) {
+            assertEquals("metrics-device", tags.get("device"));
+            values.put(name, count);
+        }
+
+        @Override
+        public void gauge(String name, Map<String, String> tags, LongSupplier value) {
+            values.put(name, value);
+        }
+
+        @Override
+        public void histogram(String name, Map<String, String> tags, LatencyHistogram histogram) {
+            histograms.put(name, histogram);
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        homie.shutdown();
+    }
+
+    private static void awaitState(Homie homie, Homie.State state) throws InterruptedException {
+        while (homie.getState() != state) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void publishAndReconnect() throws Exception {
+        Configuration c = new Configuration();
+        c.setBrokerUrl(BROKER.getUrl());
+        c.setDeviceID("metrics-device");
+        c.setDisconnectRetry(100);
+        homie = new Homie(c, "firmware", "1.0");
+        Property property = homie.createNode("node", "node").getProperty("value");
+        property.setDataType(Property.DataType.INTEGER);
+        HomieMetrics metrics = homie.getMetrics();
+        RecordingRegistry registry = new RecordingRegistry();
+        metrics.bindTo(registry);
+
+        /* held back until the device is ready */
+        property.send(1);
+        assertEquals(1, registry.values.get("homie.outbox.queued").getAsLong());
+
+        homie.setup();
+        awaitState(homie, Homie.State.READY);
+        property.send(2).toCompletableFuture().get();
+        while (metrics.getInFlight() > 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, metrics.getTimeToReady().getCount());
+        assertEquals(0, metrics.getQueued());
+        assertEquals(0, metrics.getReconnects());
+        long sent = metrics.getPublishesSent();
+        assertTrue(sent > 2);
+        assertEquals(sent, metrics.getAckLatency().getCount());
+        assertEquals(sent, registry.values.get("homie.publish.sent").getAsLong());
+        assertEquals(0, metrics.getPublishesFailed());
+
+        BROKER.getBroker().disconnect("metrics-device");
+        while (homie.getState() == Homie.State.READY) {
+            Thread.sleep(10);
+        }
+        awaitState(homie, Homie.State.READY);
+        assertEquals(1, metrics.getReconnects());
+        assertEquals(1, metrics.getReconnectDuration().getCount());
+        assertEquals(2, metrics.getTimeToReady().getCount());
+        assertTrue(metrics.getReconnectDuration().getMax() > 0);
+        assertEquals(metrics.getReconnectDuration(), registry.histograms.get("homie.reconnect.duration"));
+        assertEquals(13, registry.values.size() + registry.histograms.size());
+    }
+
+    @Test
+    void dropWhileAcknowledgementsStall() throws Exception {
+        Configuration c = new Configuration();
+        c.setBrokerUrl(BROKER.getUrl());
+        c.setDeviceID("stalled-metrics-device");
+        c.setOutboxCapacity(100);
+        homie = new Homie(c, "firmware", "1.0");
+        Property property = homie.createNode("node", "node").getProperty("value");
+        property.setDataType(Property.DataType.INTEGER);
+        property.setRetained(false);
+        homie.setup();
+        awaitState(homie, Homie.State.READY);
+
+        /* nothing is acknowledged anymore, only outboxCapacity messages may wait for the window */
+        BROKER.getBroker().setDropRate(1);
+        try {
+            long dropped = homie.getMetrics().getPublishesDropped();
+            for (int i = 0; i < 10_000; i++) {
+                property.send(i);
+            }
+            assertTrue(homie.getMetrics().getPublishesDropped() - dropped >= 10_000 - 100 - homie.getMetrics().getInFlight());
+        } finally {
+            BROKER.getBroker().resetFaults();
+        }
+    }
+}
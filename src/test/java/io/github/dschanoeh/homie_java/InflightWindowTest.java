@@ -0,0 +1,123 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InflightWindowTest {
+
+    @Test
+    void waitsInOrder() {
+        InflightWindow window = new InflightWindow(2, 10, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        List<Integer> sent = new ArrayList<>();
+        assertTrue(window.tryAcquire());
+        window.submit(() -> sent.add(1));
+        window.submit(() -> sent.add(2));
+        window.submit(() -> sent.add(3));
+        assertEquals(Arrays.asList(1), sent);
+        assertEquals(2, window.waiting());
+
+        /* a free slot doesn't let new publishes overtake waiting ones */
+        assertFalse(window.tryAcquire());
+        window.release();
+        assertEquals(Arrays.asList(1, 2), sent);
+        window.release();
+        window.release();
+        assertEquals(Arrays.asList(1, 2, 3), sent);
+        assertEquals(0, window.waiting());
+        assertTrue(window.tryAcquire());
+    }
+
+    @Test
+    void releaseFromWaitingPublish() {
+        InflightWindow window = new InflightWindow(1, 0, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        assertTrue(window.tryAcquire());
+        int[] sent = {0};
+        for (int i = 0; i < 100_000; i++) {
+            /* publishes that fail right away release their slot while the window drains */
+            window.submit(() -> {
+                sent[0]++;
+                window.release();
+            });
+        }
+        window.release();
+        assertEquals(100_000, sent[0]);
+        assertEquals(0, window.waiting());
+        assertTrue(window.tryAcquire());
+    }
+
+    @Test
+    void abandon() {
+        InflightWindow window = new InflightWindow(1, 10, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        assertTrue(window.tryAcquire());
+        List<Integer> sent = new ArrayList<>();
+        window.submit(() -> sent.add(1));
+        window.submit(() -> sent.add(2));
+        window.abandon();
+        assertEquals(Arrays.asList(1, 2), sent);
+        assertEquals(0, window.waiting());
+    }
+
+    /**
+     * Floods a window whose acknowledgements never arrive.
+     */
+    private static List<Integer> flood(Configuration.OutboxOverflowPolicy policy, List<Integer> rejected) {
+        InflightWindow window = new InflightWindow(2, 100, policy);
+        List<Integer> sent = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            int value = i;
+            if (window.tryAcquire()) {
+                sent.add(value);
+            } else {
+                window.submit(() -> sent.add(value), () -> rejected.add(value));
+            }
+        }
+        assertEquals(100, window.waiting());
+        assertEquals(2, sent.size());
+        return sent;
+    }
+
+    @Test
+    void floodDropsOldest() {
+        List<Integer> rejected = new ArrayList<>();
+        flood(Configuration.OutboxOverflowPolicy.DROP_OLDEST, rejected);
+        assertEquals(100_000 - 102, rejected.size());
+        assertEquals(2, (int) rejected.get(0));
+        assertEquals(100_000 - 101, (int) rejected.get(rejected.size() - 1));
+    }
+
+    @Test
+    void floodDropsNewest() {
+        for (Configuration.OutboxOverflowPolicy policy : Arrays.asList(
+                Configuration.OutboxOverflowPolicy.DROP_NEWEST, Configuration.OutboxOverflowPolicy.BLOCK)) {
+            List<Integer> rejected = new ArrayList<>();
+            flood(policy, rejected);
+            assertEquals(100_000 - 102, rejected.size());
+            assertEquals(102, (int) rejected.get(0));
+        }
+    }
+
+    @Test
+    void undroppablePublishesAlwaysWait() {
+        InflightWindow window = new InflightWindow(1, 1, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        assertTrue(window.tryAcquire());
+        List<Integer> sent = new ArrayList<>();
+        List<Integer> rejected = new ArrayList<>();
+        window.submit(() -> sent.add(1));
+        window.submit(() -> sent.add(2), () -> rejected.add(2));
+        window.submit(() -> sent.add(3));
+        window.submit(() -> sent.add(4), () -> rejected.add(4));
+        assertEquals(Arrays.asList(2), rejected);
+        assertEquals(3, window.waiting());
+        for (int i = 0; i < 4; i++) {
+            window.release();
+        }
+        assertEquals(Arrays.asList(1, 3, 4), sent);
+    }
+}
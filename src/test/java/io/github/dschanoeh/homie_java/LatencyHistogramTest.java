@@ -0,0 +1,60 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void bucketsAreContiguous() {
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.highestEquivalentValue(index) >= value);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.highestEquivalentValue(index - 1) < value);
+            }
+        }
+        long highest = LatencyHistogram.HIGHEST_TRACKABLE_VALUE;
+        assertEquals(highest, LatencyHistogram.highestEquivalentValue(LatencyHistogram.index(highest)));
+    }
+
+    @Test
+    void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean(), 0.1);
+        assertEquals(5_000_000, histogram.getValueAtPercentile(50), 5_000_000 * 0.032);
+        assertEquals(9_900_000, histogram.getValueAtPercentile(99), 9_900_000 * 0.032);
+        assertEquals(9_990_000, histogram.getValueAtPercentile(99.9), 9_990_000 * 0.032);
+        assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    void reset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(42);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    void beyondHighestTrackableValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1000, histogram.getValueAtPercentile(50), 1000 * 0.032);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+}
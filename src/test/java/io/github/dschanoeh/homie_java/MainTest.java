@@ -6,7 +6,14 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.RegisterExtension;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -16,7 +23,6 @@ public class MainTest {
     private static final String FIRMWARE_VERSION = "1.0";
     private static final String DEVICE_ID = "my-test-device2";
     private static final String DEVICE_NAME = "My Device Name";
-    private static final String TEST_BROKER_URL = "tcp://127.0.0.1:1883";
     private static final String TEST_NODE = "test-node";
     private static final String TEST_NODE_NAME = "My Test Node 3 %";
     private static final String TEST_PROPERTY = "test-property";
@@ -35,12 +41,15 @@ public class MainTest {
     private static final String TEST_BROADCAST_PAYLOAD = "alert!";
     private static final Integer STATS_INTERVAL = 1000;
 
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
     private final Homie homie;
     private MqttClient client;
 
     public MainTest() {
         Configuration c = new Configuration();
-        c.setBrokerUrl(TEST_BROKER_URL);
+        c.setBrokerUrl(BROKER.getUrl());
         c.setDeviceID(DEVICE_ID);
         c.setDeviceName(DEVICE_NAME);
         c.setStatsInterval(STATS_INTERVAL);
@@ -49,7 +58,7 @@ public class MainTest {
 
     @BeforeEach
     void initializeClient() throws MqttException {
-        client = new MqttClient(TEST_BROKER_URL, "ClientID", new MemoryPersistence());
+        client = new MqttClient(BROKER.getUrl(), "ClientID", new MemoryPersistence());
         MqttConnectOptions options = new MqttConnectOptions();
         client.connect(options);
     }
@@ -419,6 +428,42 @@ public class MainTest {
         assert wasReceived[7];
     }
 
+    @Test
+    void setCallbackPublishesBeyondWindow() throws Exception {
+        Configuration c = new Configuration();
+        c.setBrokerUrl(BROKER.getUrl());
+        c.setDeviceID("window-device");
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(20);
+        Homie device = new Homie(c, FIRMWARE_NAME, FIRMWARE_VERSION, options);
+        Node node = device.createNode(TEST_NODE, TEST_NODE_TYPE);
+        Property values = node.getProperty(TEST_INTEGER_PROPERTY);
+        values.setDataType(Property.DataType.INTEGER);
+        Property trigger = node.getProperty(TEST_PROPERTY);
+        List<CompletableFuture<Void>> sent = new CopyOnWriteArrayList<>();
+        /* runs on the client's callback thread, which also delivers the acknowledgements */
+        trigger.makeSettable((property, value) -> {
+            for (int i = 0; i < 50; i++) {
+                sent.add(values.send(i).toCompletableFuture());
+            }
+        });
+        device.setup();
+        try {
+            while (device.getState() != Homie.State.READY) {
+                Thread.sleep(50);
+            }
+            client.publish("homie/window-device/" + TEST_NODE + "/" + TEST_PROPERTY + "/set", new MqttMessage("go".getBytes()));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sent.size() < 50 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(50, sent.size());
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        } finally {
+            device.shutdown();
+        }
+    }
+
     @Test
     void topicIDTest() {
         assert Homie.isValidTopicID("test-topic");
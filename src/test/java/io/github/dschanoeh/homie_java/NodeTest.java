@@ -0,0 +1,114 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NodeTest {
+
+    private static class RecordingHomie extends Homie {
+        final Map<String, String> attributes = new ConcurrentHashMap<>();
+
+        RecordingHomie() {
+            super(new Configuration(), "name", "version");
+        }
+
+        @Override
+        protected CompletionStage<Void> publishAttribute(String topic, String payload) {
+            attributes.put(topic, payload);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @Test
+    void advertiseNewProperty() {
+        RecordingHomie homie = new RecordingHomie();
+        Node node = homie.createNode("node", "type");
+        node.getProperty("first");
+        List<CompletionStage<Void>> pending = new ArrayList<>();
+        node.onConnect(pending);
+        homie.attributes.clear();
+
+        /* nothing changed */
+        assertFalse(node.advertiseChanges(pending));
+        assertTrue(homie.attributes.isEmpty());
+
+        node.getProperty("second").setDataType(Property.DataType.INTEGER);
+        assertFalse(node.advertiseChanges(pending));
+        assertEquals("integer", homie.attributes.get("node/second/$datatype"));
+        assertTrue(homie.attributes.get("node/$properties").contains("second"));
+        assertEquals(null, homie.attributes.get("node/first/$datatype"));
+    }
+
+    @Test
+    void readvertiseSettable() {
+        RecordingHomie homie = new RecordingHomie();
+        Node node = homie.createNode("node", "type");
+        Property property = node.getProperty("property");
+        List<CompletionStage<Void>> pending = new ArrayList<>();
+        node.onConnect(pending);
+        assertEquals("false", homie.attributes.get("node/property/$settable"));
+
+        property.makeSettable((p, value) -> { });
+        node.advertiseChanges(pending);
+        assertEquals("true", homie.attributes.get("node/property/$settable"));
+    }
+
+    @Test
+    void readvertiseAttributes() {
+        RecordingHomie homie = new RecordingHomie();
+        Node node = homie.createNode("node", "type");
+        List<CompletionStage<Void>> pending = new ArrayList<>();
+        node.onConnect(pending);
+
+        /* the state machine may advertise a new property before it is configured */
+        Property property = node.getProperty("property");
+        node.advertiseChanges(pending);
+        assertEquals("string", homie.attributes.get("node/property/$datatype"));
+
+        property.setDataType(Property.DataType.INTEGER);
+        property.setFormat("0:100");
+        property.setName("Property");
+        property.setUnit("%");
+        node.setName("Node");
+        assertFalse(node.advertiseChanges(pending));
+        assertEquals("integer", homie.attributes.get("node/property/$datatype"));
+        assertEquals("0:100", homie.attributes.get("node/property/$format"));
+        assertEquals("Property", homie.attributes.get("node/property/$name"));
+        assertEquals("%", homie.attributes.get("node/property/$unit"));
+        assertEquals("Node", homie.attributes.get("node/$name"));
+    }
+
+    @Test
+    void concurrentGetProperty() throws Exception {
+        RecordingHomie homie = new RecordingHomie();
+        Node node = homie.createNode("node", "type");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Property>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                String id = "property-" + (i % 100);
+                results.add(pool.submit(() -> node.getProperty(id)));
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertSame(node.getProperty("property-" + (i % 100)), results.get(i).get());
+            }
+            assertEquals(100, node.getPropCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
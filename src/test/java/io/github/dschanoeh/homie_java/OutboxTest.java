@@ -0,0 +1,222 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboxTest {
+
+    private static MqttMessage message(String payload, boolean retained) {
+        MqttMessage m = new MqttMessage(payload.getBytes(UTF_8));
+        m.setRetained(retained);
+        return m;
+    }
+
+    private static List<String> flush(Outbox outbox) {
+        List<String> published = new ArrayList<>();
+        outbox.flush((topic, message) -> {
+            published.add(topic + "=" + new String(message.getPayload(), UTF_8));
+            return CompletableFuture.completedFuture(null);
+        });
+        return published;
+    }
+
+    @Test
+    void flushInOrder() {
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        CompletableFuture<Void> first = outbox.offer("a", message("1", false));
+        outbox.offer("b", message("2", false));
+        outbox.offer("a", message("3", false));
+
+        assertEquals("[a=1, b=2, a=3]", flush(outbox).toString());
+        assertTrue(first.isDone());
+        assertNull(outbox.offer("a", message("4", false)));
+    }
+
+    @Test
+    void coalesceRetained() {
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        CompletableFuture<Void> first = outbox.offer("a", message("1", true));
+        outbox.offer("b", message("2", true));
+        CompletableFuture<Void> second = outbox.offer("a", message("3", true));
+
+        assertSame(first, second);
+        assertEquals(2, outbox.size());
+        assertEquals("[a=3, b=2]", flush(outbox).toString());
+    }
+
+    @Test
+    void dropOldest() {
+        Outbox outbox = new Outbox(2, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        CompletableFuture<Void> dropped = outbox.offer("a", message("1", true));
+        outbox.offer("b", message("2", true));
+        outbox.offer("c", message("3", true));
+
+        assertTrue(dropped.isCompletedExceptionally());
+        assertEquals(1, outbox.getDropped());
+        assertEquals("[b=2, c=3]", flush(outbox).toString());
+    }
+
+    @Test
+    void dropNewest() {
+        Outbox outbox = new Outbox(2, Configuration.OutboxOverflowPolicy.DROP_NEWEST);
+        outbox.offer("a", message("1", false));
+        outbox.offer("b", message("2", false));
+        CompletableFuture<Void> dropped = outbox.offer("c", message("3", false));
+
+        assertTrue(dropped.isCompletedExceptionally());
+        assertEquals(1, outbox.getDropped());
+        assertEquals("[a=1, b=2]", flush(outbox).toString());
+    }
+
+    @Test
+    void disabled() {
+        Outbox outbox = new Outbox(0, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        assertNull(outbox.offer("a", message("1", false)));
+    }
+
+    @Test
+    void restoreFromJournal() throws IOException {
+        Path directory = Files.createTempDirectory("outbox");
+        SegmentJournal journal = new SegmentJournal(directory, 4096, null);
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST, journal);
+        outbox.offer("a", message("1", true));
+        outbox.offer("b", message("2", false));
+        outbox.offer("a", message("3", true));
+        journal.close();
+
+        SegmentJournal reopened = new SegmentJournal(directory, 4096, null);
+        Outbox restored = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST, reopened);
+        restored.offer("c", message("4", false));
+        assertEquals("[a=3, b=2, c=4]", flush(restored).toString());
+        assertEquals(0, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    void offerWhileFlushing() {
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.BLOCK);
+        outbox.offer("a", message("1", false));
+        outbox.offer("b", message("2", false));
+
+        List<String> published = new ArrayList<>();
+        outbox.flush((topic, message) -> {
+            published.add(topic + "=" + new String(message.getPayload(), UTF_8));
+            if (topic.equals("a")) {
+                /* like an acknowledgement publishing from the client's callback thread */
+                try {
+                    CompletableFuture.supplyAsync(() -> outbox.offer("c", message("3", false))).get(5, TimeUnit.SECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+
+        assertEquals("[a=1, b=2, c=3]", published.toString());
+        assertNull(outbox.offer("d", message("4", false)));
+    }
+
+    @Test
+    void holdWhileFlushing() {
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        outbox.offer("a", message("1", false));
+
+        List<String> published = new ArrayList<>();
+        outbox.flush((topic, message) -> {
+            published.add(topic);
+            outbox.hold();
+            outbox.offer("b", message("2", false));
+            return CompletableFuture.completedFuture(null);
+        });
+
+        assertEquals("[a]", published.toString());
+        assertEquals(1, outbox.size());
+        assertEquals("[b=2]", flush(outbox).toString());
+    }
+
+    @Test
+    void closeAndReopen() throws IOException {
+        Path directory = Files.createTempDirectory("outbox");
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST,
+                new SegmentJournal(directory, 4096, null));
+        outbox.offer("a", message("1", false));
+        outbox.offer("b", message("2", false));
+        outbox.close();
+        assertTrue(outbox.isClosed());
+        outbox.offer("c", message("3", false));
+
+        SegmentJournal reopened = new SegmentJournal(directory, 4096, null);
+        outbox.reopen(reopened);
+        assertEquals(3, reopened.size());
+        assertEquals("[a=1, b=2, c=3]", flush(outbox).toString());
+        assertEquals(0, reopened.size());
+        outbox.close();
+    }
+
+    @Test
+    void replayAfterConnectionLoss() throws IOException {
+        Path directory = Files.createTempDirectory("outbox");
+        SegmentJournal journal = new SegmentJournal(directory, 4096, null);
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST, journal);
+        CompletableFuture<Void> first = outbox.offer("a", message("1", false));
+        CompletableFuture<Void> second = outbox.offer("b", message("2", true));
+        outbox.offer("c", message("3", false));
+
+        /* the connection drops after the first message */
+        List<String> published = new ArrayList<>();
+        outbox.flush((topic, message) -> {
+            published.add(topic);
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if (topic.equals("a")) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+            }
+            return result;
+        });
+        assertEquals("[a, b, c]", published.toString());
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(2, outbox.size());
+        assertEquals(2, journal.size());
+
+        /* held again, new messages queue behind the failed ones */
+        outbox.offer("d", message("4", false));
+        assertEquals("[b=2, c=3, d=4]", flush(outbox).toString());
+        assertTrue(second.isDone());
+        assertEquals(0, journal.size());
+        outbox.close();
+    }
+
+    @Test
+    void dropOnOtherFailures() {
+        Outbox outbox = new Outbox(10, Configuration.OutboxOverflowPolicy.DROP_OLDEST);
+        CompletableFuture<Void> result = outbox.offer("a", message("1", false));
+        outbox.flush((topic, message) -> {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("rejected"));
+            return failed;
+        });
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(0, outbox.size());
+        assertNull(outbox.offer("b", message("2", false)));
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PayloadDecoderTest {
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(US_ASCII);
+    }
+
+    @Test
+    void longValues() {
+        long[] values = {0, 1, -1, 42, -123456, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            assertEquals(value, PayloadDecoder.parseLong(bytes(String.valueOf(value))));
+        }
+        assertEquals(7, PayloadDecoder.parseLong(bytes("+7")));
+    }
+
+    @Test
+    void invalidLongValues() {
+        String[] values = {"", "-", "+", "1.5", "12a", "9223372036854775808", "-9223372036854775809"};
+        for (String value : values) {
+            assertThrows(NumberFormatException.class, () -> PayloadDecoder.parseLong(bytes(value)));
+        }
+    }
+
+    @Test
+    void doubleValues() {
+        assertEquals(22.5, PayloadDecoder.parseDouble(bytes("22.5")));
+        assertEquals(-1.5e3, PayloadDecoder.parseDouble(bytes("-1.5e3")));
+        String[] invalid = {"warm", "NaN", "Infinity", "1e999", "0x1p3", "1.5d", " 1.5"};
+        for (String value : invalid) {
+            assertThrows(NumberFormatException.class, () -> PayloadDecoder.parseDouble(bytes(value)));
+        }
+    }
+
+    @Test
+    void simpleDoubleValues() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            String value = BigDecimal.valueOf(random.nextLong() % 1_000_000_000_000_000L, random.nextInt(16)).toPlainString();
+            assertEquals(Double.parseDouble(value), PayloadDecoder.parseDouble(bytes(value)), value);
+        }
+        assertEquals(-0.0, PayloadDecoder.parseDouble(bytes("-0.0")));
+        assertEquals(0.5, PayloadDecoder.parseDouble(bytes(".5")));
+    }
+
+    @Test
+    void colorValues() {
+        assertEquals(Property.packColor(360, 0, 100), PayloadDecoder.parseColor(bytes("360,0,100"), 360, 100));
+        String[] invalid = {"", "1,2", "1,2,3,4", "1,,3", "361,0,0", "0,101,0", "-1,0,0", "1,2,3,"};
+        for (String value : invalid) {
+            assertThrows(IllegalArgumentException.class, () -> PayloadDecoder.parseColor(bytes(value), 360, 100));
+        }
+    }
+
+    @Test
+    void utf8Values() {
+        PayloadDecoder.requireUtf8("Grüße €\uD83D\uDE00".getBytes(UTF_8));
+        byte[][] invalid = {{(byte) 0xc0, (byte) 0x80}, {(byte) 0xe2, (byte) 0x82}, {(byte) 0xed, (byte) 0xa0, (byte) 0x80}, {(byte) 0xff}};
+        for (byte[] value : invalid) {
+            assertThrows(IllegalArgumentException.class, () -> PayloadDecoder.requireUtf8(value));
+        }
+    }
+
+    @Test
+    void booleanValues() {
+        assertTrue(PayloadDecoder.parseBoolean(bytes("true")));
+        assertFalse(PayloadDecoder.parseBoolean(bytes("false")));
+        assertThrows(IllegalArgumentException.class, () -> PayloadDecoder.parseBoolean(bytes("TRUE")));
+    }
+}
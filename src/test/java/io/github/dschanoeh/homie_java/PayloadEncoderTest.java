@@ -0,0 +1,73 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PayloadEncoderTest {
+
+    private static final double[] SPECIAL_VALUES = {0.0, -0.0, 0.5, 0.15, 1.005, 2.5, -2.5, 9.995, 99.5, 0.005,
+            0.0049, 22.546651, 1e-3, 1e7, 1e20, 1e-20, 123456789.123, Double.MIN_VALUE, Double.MAX_VALUE};
+
+    private final PayloadEncoder encoder = PayloadEncoder.get();
+
+    private static String string(byte[] payload) {
+        return new String(payload, US_ASCII);
+    }
+
+    @Test
+    void longValues() {
+        long[] values = {0, 1, -1, 42, -123456, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            assertEquals(String.valueOf(value), string(encoder.encode(value)));
+        }
+    }
+
+    @Test
+    void booleanValues() {
+        assertEquals("true", string(PayloadEncoder.encode(true)));
+        assertEquals("false", string(PayloadEncoder.encode(false)));
+    }
+
+    @Test
+    void colorValues() {
+        assertEquals(String.format("%d,%d,%d", 1, 22, 255), string(encoder.encodeColor(1, 22, 255)));
+    }
+
+    @Test
+    void doubleValues() {
+        Random random = new Random(1);
+        for (double value : SPECIAL_VALUES) {
+            assertEquals(String.valueOf(value), string(encoder.encode(value)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                assertEquals(String.valueOf(value), string(encoder.encode(value)));
+            }
+        }
+    }
+
+    @Test
+    void fixedPrecisionValues() {
+        Random random = new Random(1);
+        for (int precision = 0; precision < 12; precision++) {
+            for (double value : SPECIAL_VALUES) {
+                assertFixedPrecision(value, precision);
+            }
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertFixedPrecision((random.nextInt(2000000) - 1000000) / 1000.0, random.nextInt(6));
+            assertFixedPrecision(random.nextDouble() * Math.pow(10, random.nextInt(30) - 15), random.nextInt(12));
+        }
+    }
+
+    private void assertFixedPrecision(double value, int precision) {
+        String expected = String.format(Locale.ROOT, "%." + precision + "f", value);
+        assertEquals(expected, string(encoder.encode(value, precision)), value + " with precision " + precision);
+    }
+}
@@ -1,13 +1,55 @@
 package io.github.dschanoeh.homie_java;
 
 import org.junit.jupiter.api.BeforeAll;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class PropertyTest {
     private static Homie homie;
 
+    private static class RecordingHomie extends Homie {
+        final List<String> payloads = new ArrayList<>();
+        final List<byte[]> rawPayloads = new ArrayList<>();
+        final Map<String, IMqttMessageListener> listeners = new HashMap<>();
+
+        RecordingHomie() {
+            super(new Configuration(), "name", "version");
+        }
+
+        @Override
+        public CompletionStage<Void> publish(String topic, MqttMessage message) {
+            payloads.add(message.toString());
+            rawPayloads.add(message.getPayload());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        protected void registerListener(String topic, IMqttMessageListener listener) {
+            listeners.put(topic, listener);
+        }
+
+        void set(String topic, String payload) throws Exception {
+            listeners.get(topic + "/set").messageArrived(topic + "/set", new MqttMessage(payload.getBytes(UTF_8)));
+        }
+    }
+
     @BeforeAll
     public static void setup() {
         Configuration c = new Configuration();
@@ -32,4 +74,291 @@ public class PropertyTest {
             p.send(Double.NaN);
         });
     }
+
+    @Test
+    void settableTypeMismatch() {
+        Node n = new Node(homie, "node", "node");
+        Property p = n.getProperty("property");
+        p.setDataType(Property.DataType.FLOAT);
+        assertThrows(UnsupportedOperationException.class, () -> {
+            p.makeSettableLong((property, value) -> { });
+        });
+        assertThrows(UnsupportedOperationException.class, () -> {
+            p.send(42L);
+        });
+    }
+
+    @Test
+    void cachedTopic() {
+        Configuration c = new Configuration();
+        c.setDeviceID("device");
+        CachedTopic topic = new CachedTopic(new Homie(c, "name", "version"), "node/property");
+
+        String first = topic.get();
+        assertEquals("homie/device/node/property", first);
+        assertSame(first, topic.get());
+
+        c.setDeviceID("other-device");
+        assertEquals("homie/other-device/node/property", topic.get());
+    }
+
+    @Test
+    void publishOnChange() {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.INTEGER);
+        p.setPublishPolicy(PublishPolicy.onChange());
+
+        p.send(1L);
+        p.send(1L);
+        p.send(2L);
+        p.send(2L);
+        assertEquals(2, h.payloads.size());
+    }
+
+    @Test
+    void publishOnChangeWithPrecision() {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.FLOAT);
+        p.setPublishPolicy(PublishPolicy.onChange());
+
+        p.send(20.01, 1);
+        p.send(20.04, 1);
+        p.send(20.06, 1);
+        assertEquals(Arrays.asList("20.0", "20.1"), h.payloads);
+    }
+
+    @Test
+    void publishAbsoluteDeadband() {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.FLOAT);
+        p.setPublishPolicy(PublishPolicy.absoluteDeadband(0.5));
+
+        p.send(20.0);
+        p.send(20.3);
+        p.send(20.4);
+        p.send(20.6);
+        p.send(20.0);
+        assertEquals(3, h.payloads.size());
+        assertEquals("20.6", h.payloads.get(1));
+    }
+
+    @Test
+    void publishRelativeDeadband() {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.INTEGER);
+        p.setPublishPolicy(PublishPolicy.relativeDeadband(0.1));
+
+        p.send(1000L);
+        p.send(1099L);
+        p.send(1100L);
+        p.send(1200L);
+        assertEquals(2, h.payloads.size());
+    }
+
+    @Test
+    void publishAfterMaxSilence() throws InterruptedException {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setPublishPolicy(PublishPolicy.onChange().withMaxSilence(Duration.ofMillis(20)));
+
+        p.send("value");
+        p.send("value");
+        Thread.sleep(30);
+        p.send("value");
+        assertEquals(2, h.payloads.size());
+    }
+
+    @Test
+    void conflateAboveMaxRate() throws Exception {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.INTEGER);
+        p.setMaxPublishRate(5);
+
+        CompletionStage<Void> last = null;
+        for (long i = 1; i <= 100; i++) {
+            last = p.send(i);
+        }
+        assertEquals(1, h.payloads.size());
+
+        last.toCompletableFuture().get(1, TimeUnit.SECONDS);
+        assertEquals(2, h.payloads.size());
+        assertEquals("100", h.payloads.get(1));
+    }
+
+    @Test
+    void conflateWithBlockingOutbox() throws Exception {
+        Configuration c = new Configuration();
+        c.setOutboxCapacity(1);
+        c.setOutboxOverflowPolicy(Configuration.OutboxOverflowPolicy.BLOCK);
+        Homie h = new Homie(c, "name", "version");
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.INTEGER);
+        p.setMaxPublishRate(20);
+        /* retained values would replace each other in the outbox */
+        p.setRetained(false);
+
+        /* the first value fills the outbox, the conflated one waits for room */
+        p.send(1);
+        CompletionStage<Void> conflated = p.send(2);
+        Thread.sleep(100);
+
+        /* meanwhile the timer thread keeps running other timers */
+        CompletableFuture<Void> timer = new CompletableFuture<>();
+        h.getTimerWheel().schedule(() -> timer.complete(null), 10, TimeUnit.MILLISECONDS);
+        timer.get(1, TimeUnit.SECONDS);
+        assertEquals(false, conflated.toCompletableFuture().isDone());
+
+        h.getOutbox().flush((topic, message) -> CompletableFuture.completedFuture(null));
+    }
+
+    @Test
+    void sendEncodedPayload() {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.INTEGER);
+
+        byte[] payload = "42".getBytes(UTF_8);
+        p.send(payload);
+        assertSame(payload, h.rawPayloads.get(0));
+
+        ByteBuffer buffer = ByteBuffer.wrap("-7".getBytes(UTF_8));
+        p.send(buffer);
+        assertSame(buffer.array(), h.rawPayloads.get(1));
+        assertEquals(0, buffer.remaining());
+
+        p.send("x1234y".getBytes(UTF_8), 1, 4);
+        assertEquals("1234", h.payloads.get(2));
+
+        assertThrows(IllegalArgumentException.class, () -> p.send("4.2".getBytes(UTF_8)));
+        assertEquals(3, h.payloads.size());
+    }
+
+    @Test
+    void sendEncodedPayloadValidation() {
+        RecordingHomie h = new RecordingHomie();
+        Node n = h.createNode("node", "node");
+        Property color = n.getProperty("color");
+        color.setDataType(Property.DataType.COLOR_RGB);
+        color.send("255,0,128".getBytes(UTF_8));
+        assertThrows(IllegalArgumentException.class, () -> color.send("256,0,0".getBytes(UTF_8)));
+
+        Property mode = n.getProperty("mode");
+        mode.setDataType(Property.DataType.ENUM);
+        mode.setFormat("on,off");
+        mode.send("off".getBytes(UTF_8));
+        assertThrows(IllegalArgumentException.class, () -> mode.send("of".getBytes(UTF_8)));
+
+        Property text = n.getProperty("text");
+        text.send(new byte[0]);
+        assertThrows(IllegalArgumentException.class, () -> text.send(new byte[]{(byte) 0xff}));
+        assertEquals(3, h.payloads.size());
+    }
+
+    @Test
+    void sendEncodedPayloadOnChange() {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("property");
+        p.setDataType(Property.DataType.FLOAT);
+        p.setPublishPolicy(PublishPolicy.onChange());
+
+        p.send(1.5);
+        p.send("1.5".getBytes(UTF_8));
+        p.send("1.50".getBytes(UTF_8));
+        p.send("2".getBytes(UTF_8));
+        assertEquals(2, h.payloads.size());
+    }
+
+    @Test
+    void settableRange() throws Exception {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("dimmer");
+        p.setDataType(Property.DataType.INTEGER);
+        p.setFormat("0:100");
+        List<Long> values = new ArrayList<>();
+        p.makeSettableLong((property, value) -> values.add(value));
+
+        h.set("node/dimmer", "42");
+        h.set("node/dimmer", "101");
+        h.set("node/dimmer", "-1");
+        h.set("node/dimmer", "half");
+        assertEquals(Arrays.asList(42L), values);
+        assertEquals(3, p.getRejectedSetMessages());
+        assertEquals(3, h.getRejectedSetMessages());
+
+        Property setpoint = h.createNode("node", "node").getProperty("setpoint");
+        setpoint.setDataType(Property.DataType.FLOAT);
+        setpoint.setFormat("5.5:");
+        List<Double> setpoints = new ArrayList<>();
+        setpoint.makeSettableDouble((property, value) -> setpoints.add(value));
+        h.set("node/setpoint", "21.5");
+        h.set("node/setpoint", "5.4");
+        assertEquals(Arrays.asList(21.5), setpoints);
+
+        assertThrows(IllegalArgumentException.class, () -> p.setFormat("low:high"));
+        assertThrows(IllegalArgumentException.class, () -> p.setFormat("10:0"));
+    }
+
+    @Test
+    void setMetrics() throws Exception {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("dimmer");
+        p.setDataType(Property.DataType.INTEGER);
+        p.makeSettableLong((property, value) -> { });
+
+        h.set("node/dimmer", "1");
+        h.set("node/dimmer", "2");
+        h.set("node/dimmer", "half");
+        HomieMetrics metrics = h.getMetrics();
+        assertEquals(3, metrics.getSetMessagesReceived());
+        assertEquals(1, metrics.getSetMessagesRejected());
+        assertEquals(0, metrics.getSetMessagesDropped());
+        assertEquals(2, metrics.getSetCallbackLatency().getCount());
+    }
+
+    @Test
+    void settableEnumAndColor() throws Exception {
+        RecordingHomie h = new RecordingHomie();
+        Node n = h.createNode("node", "node");
+        Property mode = n.getProperty("mode");
+        mode.setDataType(Property.DataType.ENUM);
+        mode.setFormat("off,eco,comfort");
+        List<Integer> ordinals = new ArrayList<>();
+        mode.makeSettableEnum((property, ordinal) -> ordinals.add(ordinal));
+        h.set("node/mode", "comfort");
+        h.set("node/mode", "boost");
+        assertEquals(Arrays.asList(2), ordinals);
+
+        Property color = n.getProperty("color");
+        color.setDataType(Property.DataType.COLOR_HSV);
+        List<String> colors = new ArrayList<>();
+        color.makeSettableColor((property, a, b, c) -> colors.add(a + "/" + b + "/" + c));
+        h.set("node/color", "300,50,100");
+        h.set("node/color", "300,150,100");
+        assertEquals(Arrays.asList("300/50/100"), colors);
+        assertEquals(2, h.getRejectedSetMessages());
+    }
+
+    @Test
+    void sendEnumOrdinal() {
+        RecordingHomie h = new RecordingHomie();
+        Property p = h.createNode("node", "node").getProperty("mode");
+        p.setDataType(Property.DataType.ENUM);
+        p.setFormat("off,eco,comfort");
+        p.setPublishPolicy(PublishPolicy.onChange());
+
+        p.sendOrdinal(1);
+        p.send("eco");
+        p.send("comfort");
+        p.sendOrdinal(1);
+        assertEquals(Arrays.asList("eco", "comfort", "eco"), h.payloads);
+        /* the payload of a value is encoded once and shared */
+        assertSame(h.rawPayloads.get(0), h.rawPayloads.get(2));
+        assertThrows(IllegalArgumentException.class, () -> p.sendOrdinal(3));
+        assertThrows(UnsupportedOperationException.class, () -> p.send("boost"));
+    }
 }
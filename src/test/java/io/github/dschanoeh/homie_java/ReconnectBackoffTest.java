@@ -0,0 +1,105 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReconnectBackoffTest {
+
+    private static final long BASE = 2000;
+    private static final long CAP = 60000;
+
+    @Test
+    void delaysStayWithinBounds() {
+        ReconnectBackoff backoff = new ReconnectBackoff(BASE, CAP, new Random(1));
+        long previous = BASE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= BASE);
+            assertTrue(delay <= Math.min(CAP, previous * 3));
+            previous = delay;
+        }
+    }
+
+    @Test
+    void resetStartsOver() {
+        ReconnectBackoff backoff = new ReconnectBackoff(BASE, CAP, new Random(2));
+        for (int i = 0; i < 20; i++) {
+            backoff.nextDelay();
+        }
+        backoff.reset();
+        assertTrue(backoff.nextDelay() <= BASE * 3);
+    }
+
+    /**
+     * Stand-in broker that is down for a while and counts the connection
+     * attempts it receives per second once it is back up.
+     */
+    private static class SimulatedBroker {
+        final long upAt;
+        final int[] attemptsPerSecond;
+
+        SimulatedBroker(long upAt, int seconds) {
+            this.upAt = upAt;
+            this.attemptsPerSecond = new int[seconds];
+        }
+
+        boolean connect(long time) {
+            if (time < upAt) {
+                return false;
+            }
+            int second = (int) ((time - upAt) / 1000);
+            if (second < attemptsPerSecond.length) {
+                attemptsPerSecond[second]++;
+            }
+            return true;
+        }
+
+        int peak() {
+            int peak = 0;
+            for (int attempts : attemptsPerSecond) {
+                peak = Math.max(peak, attempts);
+            }
+            return peak;
+        }
+    }
+
+    /**
+     * Simulates a fleet that loses the broker at the same moment and returns
+     * the highest number of reconnects the broker sees within one second.
+     */
+    private static int simulateFleet(int devices, boolean jitter) {
+        SimulatedBroker broker = new SimulatedBroker(30000, 300);
+        Random random = new Random(42);
+        /* pending attempts as {time, device} ordered by time */
+        PriorityQueue<long[]> attempts = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        ReconnectBackoff[] backoffs = new ReconnectBackoff[devices];
+        for (int i = 0; i < devices; i++) {
+            backoffs[i] = new ReconnectBackoff(BASE, jitter ? CAP : BASE, random);
+            attempts.add(new long[]{backoffs[i].nextDelay(), i});
+        }
+
+        while (!attempts.isEmpty()) {
+            long[] attempt = attempts.poll();
+            if (!broker.connect(attempt[0])) {
+                attempts.add(new long[]{attempt[0] + backoffs[(int) attempt[1]].nextDelay(), attempt[1]});
+            }
+        }
+        return broker.peak();
+    }
+
+    @Test
+    void fleetReconnectsSpreadOut() {
+        int devices = 3000;
+        int lockstep = simulateFleet(devices, false);
+        int jittered = simulateFleet(devices, true);
+
+        /* a fixed delay makes the whole fleet reconnect within the same second */
+        assertEquals(devices, lockstep);
+        assertTrue(jittered < devices / 10, "peak of " + jittered + " reconnects per second");
+    }
+}
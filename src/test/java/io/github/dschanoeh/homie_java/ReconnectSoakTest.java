@@ -0,0 +1,88 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Forces many disconnects through the embedded broker and checks that
+ * threads and heap stay flat. Run with -Dhomie.soak=true. Each reconnect
+ * takes about 300 ms, so the default of 1000 iterations runs for about five
+ * minutes; set -Dhomie.soak.iterations for longer runs.
+ */
+@EnabledIfSystemProperty(named = "homie.soak", matches = "true")
+class ReconnectSoakTest {
+    private static final String DEVICE_ID = "soak-device";
+    private static final int WARMUP = 100;
+    private static final long HEAP_SLACK = 16L * 1024 * 1024;
+
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
+    private Homie homie;
+
+    @AfterEach
+    void shutdown() {
+        homie.shutdown();
+    }
+
+    @Test
+    void reconnectWithoutLeaking() throws InterruptedException {
+        int iterations = Integer.getInteger("homie.soak.iterations", 1000);
+
+        Configuration c = new Configuration();
+        c.setBrokerUrl(BROKER.getUrl());
+        c.setDeviceID(DEVICE_ID);
+        c.setDisconnectRetry(1);
+        c.setMaxDisconnectRetry(1);
+        homie = new Homie(c, "SoakFirmware", "1.0");
+        homie.createNode("node", "type").getProperty("property").makeSettable((property, value) -> { });
+        homie.setup();
+        awaitReady();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int warmThreads = 0;
+        long warmHeap = 0;
+        for (int i = 0; i < iterations; i++) {
+            if (i == WARMUP) {
+                warmThreads = threads.getThreadCount();
+                warmHeap = usedHeap();
+            }
+            forceDisconnect();
+        }
+
+        int endThreads = threads.getThreadCount();
+        long endHeap = usedHeap();
+        assertTrue(endThreads <= warmThreads + 5, "Threads grew from " + warmThreads + " to " + endThreads);
+        assertTrue(endHeap <= warmHeap * 3 / 2 + HEAP_SLACK, "Heap grew from " + warmHeap + " to " + endHeap);
+    }
+
+    /**
+     * Drops Homie's connection and waits until it has reconnected.
+     */
+    private void forceDisconnect() throws InterruptedException {
+        BROKER.getBroker().disconnect(DEVICE_ID);
+        while (homie.getState() == Homie.State.READY) {
+            Thread.sleep(1);
+        }
+        awaitReady();
+    }
+
+    private void awaitReady() throws InterruptedException {
+        while (homie.getState() != Homie.State.READY) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,102 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentJournalTest {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private SegmentJournal open(CompactionPolicy policy) throws IOException {
+        return new SegmentJournal(directory, SEGMENT_SIZE, policy);
+    }
+
+    @Test
+    void putGetRemove() throws IOException {
+        SegmentJournal journal = open(null);
+        journal.put("a", "1".getBytes(UTF_8));
+        journal.put("b", "2".getBytes(UTF_8));
+        journal.put("a", "3".getBytes(UTF_8));
+        journal.remove("b");
+
+        assertEquals("3", new String(journal.get("a"), UTF_8));
+        assertNull(journal.get("b"));
+        assertEquals(Arrays.asList("a"), journal.keys());
+        journal.close();
+    }
+
+    @Test
+    void survivesReopen() throws IOException {
+        SegmentJournal journal = open(null);
+        for (int i = 0; i < 50; i++) {
+            journal.put("key-" + i, ("value-" + i).getBytes(UTF_8));
+        }
+        journal.remove("key-7");
+        assertTrue(journal.getSegmentCount() > 1);
+        journal.close();
+
+        SegmentJournal reopened = open(null);
+        assertEquals(49, reopened.size());
+        assertNull(reopened.get("key-7"));
+        assertEquals("value-42", new String(reopened.get("key-42"), UTF_8));
+        reopened.close();
+    }
+
+    @Test
+    void compaction() throws IOException {
+        SegmentJournal journal = open(CompactionPolicy.deadRatio(0.5));
+        for (int i = 0; i < 1000; i++) {
+            journal.put("key", ("value-" + i).getBytes(UTF_8));
+        }
+
+        assertTrue(journal.getSegmentCount() <= 2);
+        assertEquals("value-999", new String(journal.get("key"), UTF_8));
+        journal.close();
+
+        SegmentJournal reopened = open(null);
+        assertEquals(Arrays.asList("key"), reopened.keys());
+        assertEquals("value-999", new String(reopened.get("key"), UTF_8));
+        reopened.close();
+    }
+
+    @Test
+    void largeRecord() throws IOException {
+        byte[] value = new byte[SEGMENT_SIZE * 3];
+        Arrays.fill(value, (byte) 'x');
+        SegmentJournal journal = open(null);
+        journal.put("small", "1".getBytes(UTF_8));
+        journal.put("large", value);
+        journal.close();
+
+        SegmentJournal reopened = open(null);
+        assertEquals(value.length, reopened.get("large").length);
+        reopened.close();
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SerialExecutorTest {
+
+    private ExecutorService pool;
+
+    @BeforeEach
+    void setup() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    void teardown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void keepsOrder() throws InterruptedException {
+        SerialExecutor executor = new SerialExecutor(pool, 1000);
+        List<Integer> executed = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            int value = i;
+            executor.execute(() -> {
+                /* serial execution makes the unsynchronized list safe */
+                executed.add(value);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, executed.get(i).intValue());
+        }
+    }
+
+    @Test
+    void slowQueueDoesNotBlockOthers() throws InterruptedException {
+        SerialExecutor slow = new SerialExecutor(pool, 10);
+        SerialExecutor fast = new SerialExecutor(pool, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+
+        slow.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        fast.execute(fastDone::countDown);
+
+        assertTrue(fastDone.await(1, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    void dropsOldestWhenFull() throws InterruptedException {
+        SerialExecutor executor = new SerialExecutor(pool, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> executed = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        assertFalse(executor.execute(() -> executed.add(1)));
+        assertFalse(executor.execute(() -> executed.add(2)));
+        assertTrue(executor.execute(() -> { executed.add(3); done.countDown(); }));
+        executor.execute(done::countDown);
+        assertEquals(2, executor.size());
+
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(1, executed.size());
+        assertEquals(3, executed.get(0).intValue());
+    }
+}
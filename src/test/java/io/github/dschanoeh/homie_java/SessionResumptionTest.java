@@ -0,0 +1,94 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class SessionResumptionTest {
+    private static final String FIRMWARE_NAME = "TestFirmware";
+    private static final String FIRMWARE_VERSION = "1.0";
+    private static final String DEVICE_ID = "resume-device";
+    private static final String TEST_VALUE = "foo";
+
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
+    private final Homie homie;
+    private MqttClient client;
+
+    public SessionResumptionTest() {
+        Configuration c = new Configuration();
+        c.setBrokerUrl(BROKER.getUrl());
+        c.setDeviceID(DEVICE_ID);
+        c.setResumeSessions(true);
+        c.setDisconnectRetry(100);
+        homie = new Homie(c, FIRMWARE_NAME, FIRMWARE_VERSION);
+    }
+
+    @BeforeEach
+    void initializeClient() throws MqttException {
+        client = new MqttClient(BROKER.getUrl(), MqttClient.generateClientId(), new MemoryPersistence());
+        client.connect(new MqttConnectOptions());
+    }
+
+    @AfterEach
+    void shutdownClient() throws MqttException {
+        client.disconnect();
+        homie.shutdown();
+    }
+
+    @Test
+    void reconnectOnlyPublishesState() throws InterruptedException, MqttException {
+        final String[] received = {null};
+        Node node = homie.createNode("node", "type");
+        for (int i = 0; i < 20; i++) {
+            node.getProperty("property-" + i);
+        }
+        node.getProperty("property-0").makeSettable((property, value) -> received[0] = value);
+
+        homie.setup();
+        while(homie.getState() != Homie.State.READY) {
+            Thread.sleep(50);
+        }
+
+        List<String> topics = new CopyOnWriteArrayList<>();
+        client.subscribe("homie/" + DEVICE_ID + "/#", (topic, message) -> {
+            if (!message.isRetained()) {
+                topics.add(topic);
+            }
+        });
+
+        /* Drop the connection, the persistent session stays on the broker */
+        BROKER.getBroker().disconnect(DEVICE_ID);
+        while(homie.getState() == Homie.State.READY) {
+            Thread.sleep(10);
+        }
+        while(homie.getState() != Homie.State.READY) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+
+        /* lost (last will), init and ready */
+        assertTrue(topics.stream().allMatch(topic -> topic.endsWith("/$state")), topics.toString());
+        assertEquals(3, topics.size());
+
+        /* the subscription survived in the session */
+        client.publish("homie/" + DEVICE_ID + "/node/property-0/set", new MqttMessage(TEST_VALUE.getBytes()));
+        Thread.sleep(100);
+        assertEquals(TEST_VALUE, received[0]);
+    }
+}
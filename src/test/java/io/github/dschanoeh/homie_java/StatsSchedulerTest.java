@@ -0,0 +1,107 @@
+package io.github.dschanoeh.homie_java;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StatsSchedulerTest {
+
+    @RegisterExtension
+    static final EmbeddedBrokerExtension BROKER = new EmbeddedBrokerExtension();
+
+    private ScheduledThreadPoolExecutor executor;
+    private StatsScheduler scheduler;
+
+    private static class CountingHomie extends Homie {
+        final CountDownLatch sent = new CountDownLatch(2);
+
+        CountingHomie() {
+            super(new Configuration(), "name", "version");
+        }
+
+        @Override
+        void sendStats() {
+            sent.countDown();
+        }
+    }
+
+    @BeforeEach
+    void setup() {
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = new StatsScheduler(executor);
+    }
+
+    @AfterEach
+    void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void batchesDevicesByInterval() throws InterruptedException {
+        CountingHomie[] devices = new CountingHomie[100];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = new CountingHomie();
+            scheduler.register(devices[i], i % 2 == 0 ? 10 : 20);
+        }
+
+        /* one periodic task per interval, not per device */
+        assertEquals(2, executor.getQueue().size());
+        assertEquals(100, scheduler.size());
+        for (CountingHomie device : devices) {
+            assertTrue(device.sent.await(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void unregisterCancelsEmptyBatches() {
+        CountingHomie first = new CountingHomie();
+        CountingHomie second = new CountingHomie();
+        scheduler.register(first, 10);
+        scheduler.register(second, 10);
+        scheduler.register(second, 10);
+        assertEquals(2, scheduler.size());
+
+        scheduler.unregister(first);
+        assertEquals(1, executor.getQueue().size());
+        scheduler.unregister(second);
+        assertEquals(0, executor.getQueue().size());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    void unacknowledgedStatsDontStallOtherDevices() throws InterruptedException {
+        Configuration c = new Configuration();
+        c.setBrokerUrl(BROKER.getUrl());
+        c.setDeviceID("stalled-device");
+        c.setStatsInterval(10);
+        c.setStatsScheduler(scheduler);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(1);
+        Homie stalled = new Homie(c, "firmware", "1.0", options);
+        stalled.setup();
+        try {
+            while (stalled.getState() != Homie.State.READY) {
+                Thread.sleep(10);
+            }
+
+            /* the window of the stalled device stays full, its stats wait without blocking the tick */
+            BROKER.getBroker().setDropRate(1);
+            CountingHomie other = new CountingHomie();
+            scheduler.register(other, 10);
+            assertTrue(other.sent.await(1, TimeUnit.SECONDS));
+        } finally {
+            BROKER.getBroker().resetFaults();
+            stalled.shutdown();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimerWheelTest {
+
+    @Test
+    void firesInDeadlineOrder() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 8, "test-timer");
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        long start = System.nanoTime();
+
+        /* 30ms spans several rounds of the 8 bucket wheel */
+        wheel.schedule(() -> { fired.add(3); done.countDown(); }, 30, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { fired.add(1); done.countDown(); }, 2, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { fired.add(2); done.countDown(); }, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals(Arrays.asList(1, 2, 3), fired);
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    void cancel() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 8, "test-timer");
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        wheel.schedule(() -> fired.add(1), 5, TimeUnit.MILLISECONDS).cancel();
+        wheel.schedule(done::countDown, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    void sharedByDevices() {
+        Homie first = new Homie(new Configuration(), "name", "version");
+        Homie second = new Homie(new Configuration(), "name", "version");
+        assertSame(TimerWheel.getDefault(), first.getTimerWheel());
+        assertSame(first.getTimerWheel(), second.getTimerWheel());
+    }
+}
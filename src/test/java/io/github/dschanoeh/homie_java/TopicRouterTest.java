@@ -0,0 +1,55 @@
+package io.github.dschanoeh.homie_java;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TopicRouterTest {
+
+    private static final String PREFIX = "homie/device/";
+
+    @Test
+    void routeRegion() {
+        TopicRouter<String> router = new TopicRouter<>();
+        router.put("node/a/set", "a");
+        router.put("node/b/set", "b");
+
+        assertEquals("a", router.route(PREFIX + "node/a/set", PREFIX.length()));
+        assertEquals("b", router.route(PREFIX + "node/b/set", PREFIX.length()));
+        assertNull(router.route(PREFIX + "node/c/set", PREFIX.length()));
+        assertNull(router.route(PREFIX + "node/a/set/x", PREFIX.length()));
+    }
+
+    @Test
+    void manyTopics() {
+        TopicRouter<Integer> router = new TopicRouter<>();
+        for (int i = 0; i < 500; i++) {
+            router.put("node/property-" + i + "/set", i);
+        }
+        assertEquals(500, router.size());
+
+        /* removing every other key must not break the probe sequences of the rest */
+        for (int i = 0; i < 500; i += 2) {
+            router.remove("node/property-" + i + "/set");
+        }
+        assertEquals(250, router.size());
+        for (int i = 0; i < 500; i++) {
+            Integer value = router.route(PREFIX + "node/property-" + i + "/set", PREFIX.length());
+            if (i % 2 == 0) {
+                assertNull(value);
+            } else {
+                assertEquals(i, value.intValue());
+            }
+        }
+    }
+
+    @Test
+    void replace() {
+        TopicRouter<String> router = new TopicRouter<>();
+        router.put("node/a/set", "first");
+        router.put("node/a/set", "second");
+        assertEquals(1, router.size());
+        assertEquals("second", router.route("node/a/set", 0));
+    }
+}